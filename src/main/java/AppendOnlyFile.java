@@ -0,0 +1,384 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Appends propagated write commands to a log. Client threads only copy the command into a pending
+// buffer; a dedicated writer thread swaps that buffer out, writes it in one go and fsyncs according to
+// the policy, so every command appended while one write is in progress shares the next one.
+public class AppendOnlyFile {
+    public enum FsyncPolicy { ALWAYS, EVERYSEC, NO }
+
+    private static final long EVERYSEC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int REWRITE_ITEMS_PER_COMMAND = 64;
+
+    private final Path path;
+    private final FsyncPolicy policy;
+    private final SnapshotManager snapshotManager;
+    private FileChannel channel;
+    private OutputStream output;
+
+    // Guards the buffers and sequence numbers; channelLock guards the file itself.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    // With appendfsync always, completed by the writer thread once the sequence they are keyed by is on disk.
+    private final TreeMap<Long, CompletableFuture<Void>> writeWaiters = new TreeMap<>();
+    private final ReentrantLock channelLock = new ReentrantLock();
+    private RESPWriter pending = new RESPWriter();
+    private RESPWriter spare = new RESPWriter();
+    private long appendedSequence = 0;
+    private long writtenSequence = 0;
+    // Commands up to this sequence are already part of a rewritten file and must not be written again.
+    private long rewrittenThrough = 0;
+    private RESPWriter rewriteBuffer;
+
+    private volatile boolean rewriteInProgress = false;
+    private volatile boolean lastRewriteOk = true;
+    private volatile boolean lastWriteOk = true;
+
+    public AppendOnlyFile(Path path, FsyncPolicy policy, SnapshotManager snapshotManager) throws IOException {
+        this.path = path;
+        this.policy = policy;
+        this.snapshotManager = snapshotManager;
+        openChannel();
+        Thread.ofPlatform().name("aof-writer").daemon().start(this::writeLoop);
+    }
+
+    public static FsyncPolicy parsePolicy(String name) {
+        return FsyncPolicy.valueOf(name.toUpperCase());
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        output = Channels.newOutputStream(channel);
+    }
+
+    // Returns the sequence number to pass to written() or awaitWritten() before replying to the client.
+    public long append(byte[] command) {
+        lock.lock();
+        try {
+            pending.raw(command);
+            if (rewriteBuffer != null) rewriteBuffer.raw(command);
+            appended.signal();
+            return ++appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // With appendfsync always a reply may only leave once its command is on disk. Returns a future the
+    // writer thread completes once it is, or null when there is nothing to wait for. Callers wait once per
+    // batch of replies, so pipelined commands share a single fsync.
+    public CompletableFuture<Void> written(long sequence) {
+        if (policy != FsyncPolicy.ALWAYS) return null;
+        lock.lock();
+        try {
+            if (writtenSequence >= sequence) return null;
+            return writeWaiters.computeIfAbsent(sequence, s -> new CompletableFuture<>());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For a thread that may block, like a virtual-thread client; event loops use written() instead.
+    public void awaitWritten(long sequence) {
+        CompletableFuture<Void> written = written(sequence);
+        if (written != null) written.join();
+    }
+
+    // Called under lock; the returned waiters are completed once it is released.
+    private List<CompletableFuture<Void>> advanceWritten(long sequence) {
+        writtenSequence = Math.max(writtenSequence, sequence);
+        NavigableMap<Long, CompletableFuture<Void>> done = writeWaiters.headMap(writtenSequence, true);
+        if (done.isEmpty()) return List.of();
+        List<CompletableFuture<Void>> waiters = new ArrayList<>(done.values());
+        done.clear();
+        return waiters;
+    }
+
+    private static void complete(Collection<CompletableFuture<Void>> waiters) {
+        for (CompletableFuture<Void> waiter : waiters) {
+            waiter.complete(null);
+        }
+    }
+
+    private void writeLoop() {
+        long lastFsync = System.nanoTime();
+        boolean dirty = false;
+        while (true) {
+            RESPWriter batch;
+            long batchSequence;
+            lock.lock();
+            try {
+                while (pending.size() == 0) {
+                    if (dirty && System.nanoTime() - lastFsync >= EVERYSEC_INTERVAL_NANOS) break;
+                    appended.awaitNanos(EVERYSEC_INTERVAL_NANOS);
+                }
+                batch = pending;
+                pending = spare;
+                batchSequence = appendedSequence;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            channelLock.lock();
+            try {
+                if (batchSequence > rewrittenThrough) {
+                    batch.writeTo(output);
+                    dirty = true;
+                } else {
+                    batch.reset();
+                }
+                if (policy == FsyncPolicy.ALWAYS
+                        || (policy == FsyncPolicy.EVERYSEC && dirty && System.nanoTime() - lastFsync >= EVERYSEC_INTERVAL_NANOS)) {
+                    channel.force(false);
+                    lastFsync = System.nanoTime();
+                    dirty = false;
+                }
+                lastWriteOk = true;
+            } catch (IOException e) {
+                lastWriteOk = false;
+                batch.reset();
+                System.out.println("AOF write error: " + e.getMessage());
+            } finally {
+                channelLock.unlock();
+            }
+
+            List<CompletableFuture<Void>> done;
+            lock.lock();
+            try {
+                spare = batch;
+                done = advanceWritten(batchSequence);
+            } finally {
+                lock.unlock();
+            }
+            complete(done);
+        }
+    }
+
+    public boolean rewriteInBackground() {
+        lock.lock();
+        try {
+            if (rewriteInProgress) return false;
+            rewriteInProgress = true;
+        } finally {
+            lock.unlock();
+        }
+        Thread.ofPlatform().name("aof-rewrite").daemon().start(() -> {
+            try {
+                rewrite();
+                lastRewriteOk = true;
+            } catch (IOException e) {
+                lastRewriteOk = false;
+                System.out.println("AOF rewrite error: " + e.getMessage());
+            } finally {
+                lock.lock();
+                try {
+                    rewriteBuffer = null;
+                } finally {
+                    lock.unlock();
+                }
+                rewriteInProgress = false;
+            }
+        });
+        return true;
+    }
+
+    // Writes the current dataset as commands to a new file, then appends everything logged since the
+    // snapshot point and swaps the new file in.
+    private void rewrite() throws IOException {
+        Path temp = path.resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + "-" + path.getFileName());
+        try (FileChannel rewritten = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(rewritten), 1 << 16);
+            snapshotManager.captureDataset(new CommandWriter(out), () -> {
+                lock.lock();
+                try {
+                    rewriteBuffer = new RESPWriter();
+                } finally {
+                    lock.unlock();
+                }
+            });
+            out.flush();
+
+            List<CompletableFuture<Void>> done;
+            channelLock.lock();
+            try {
+                lock.lock();
+                try {
+                    rewriteBuffer.writeTo(out);
+                    out.flush();
+                    rewritten.force(true);
+                    rewrittenThrough = appendedSequence;
+                    // Whatever is still pending was logged before the swap and is in the new file already.
+                    pending.reset();
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    channel.close();
+                    openChannel();
+                    done = advanceWritten(rewrittenThrough);
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                channelLock.unlock();
+            }
+            complete(done);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // Feeds every logged command through the dispatcher, with the handler in loading mode. A truncated
+    // final command, as left by a crash mid-append, is ignored.
+    public static int replay(Path path, ClientHandler handler) throws IOException {
+        handler.setLoading();
+        int replayed = 0;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+            RESPParser parser = new RESPParser();
+            OutputStream discard = OutputStream.nullOutputStream();
+            Command command;
+            while ((command = parser.read(input)) != null) {
+                if (command.isEmpty()) continue;
+                handler.process(command, discard);
+                replayed++;
+            }
+            handler.flush(discard);
+        }
+        return replayed;
+    }
+
+    public String info() {
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (IOException e) {
+            size = -1;
+        }
+        return "aof_enabled:1"
+                + "\naof_rewrite_in_progress:" + (rewriteInProgress ? 1 : 0)
+                + "\naof_last_bgrewrite_status:" + (lastRewriteOk ? "ok" : "err")
+                + "\naof_last_write_status:" + (lastWriteOk ? "ok" : "err")
+                + "\naof_current_size:" + size;
+    }
+
+    // Emits the dataset as the shortest commands that rebuild it.
+    private static class CommandWriter implements SnapshotManager.DatasetWriter {
+        private final OutputStream out;
+        private final RESPWriter command = new RESPWriter();
+
+        CommandWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void writeString(ByteString key, byte[] value, long expiryTime) throws IOException {
+            boolean volatileKey = expiryTime != Long.MAX_VALUE;
+            command.arrayHeader(volatileKey ? 5 : 3).bulkString("SET").bulkString(key.bytes()).bulkString(value);
+            if (volatileKey) {
+                command.bulkString("PXAT").bulkString(Long.toString(expiryTime));
+            }
+            command.writeTo(out);
+        }
+
+        @Override
+        public void writeList(String key, List<String> values) throws IOException {
+            for (int start = 0; start < values.size(); start += REWRITE_ITEMS_PER_COMMAND) {
+                int end = Math.min(values.size(), start + REWRITE_ITEMS_PER_COMMAND);
+                command.arrayHeader(2 + end - start).bulkString("RPUSH").bulkString(key);
+                for (int i = start; i < end; i++) {
+                    command.bulkString(values.get(i));
+                }
+                command.writeTo(out);
+            }
+        }
+
+        // Consumer groups are recreated empty and their PELs restored entry by entry with a forced XCLAIM
+        // that sets the delivery time and count. XCLAIM only forces IDs the stream holds, so pending IDs
+        // whose entries were deleted or trimmed get a placeholder entry, added in ID order among the live
+        // ones and deleted again once the groups are restored; XDEL leaves their PEL entries in place. A
+        // last ID past the last entry is restored the same way.
+        @Override
+        public void writeStream(String key, StreamStore.StreamSnapshot stream) throws IOException {
+            TreeSet<StreamId> placeholders = new TreeSet<>();
+            for (ConsumerGroup group : stream.groups) {
+                placeholders.addAll(group.pending.keySet());
+            }
+            for (StreamStore.StreamEntry entry : stream.entries) {
+                placeholders.remove(entry.id);
+            }
+            StreamId lastEntry = stream.entries.isEmpty() ? StreamId.MIN : stream.entries.get(stream.entries.size() - 1).id;
+            if (stream.lastId.compareTo(lastEntry) > 0) placeholders.add(stream.lastId);
+
+            Iterator<StreamId> missing = placeholders.iterator();
+            StreamId nextMissing = missing.hasNext() ? missing.next() : null;
+            for (StreamStore.StreamEntry entry : stream.entries) {
+                while (nextMissing != null && nextMissing.compareTo(entry.id) < 0) {
+                    writePlaceholder(key, nextMissing);
+                    nextMissing = missing.hasNext() ? missing.next() : null;
+                }
+                command.arrayHeader(3 + entry.fields.size()).bulkString("XADD").bulkString(key).bulkString(entry.id.toString());
+                for (String field : entry.fields) {
+                    command.bulkString(field);
+                }
+                command.writeTo(out);
+            }
+            while (nextMissing != null) {
+                writePlaceholder(key, nextMissing);
+                nextMissing = missing.hasNext() ? missing.next() : null;
+            }
+            for (ConsumerGroup group : stream.groups) {
+                command.arrayHeader(6).bulkString("XGROUP").bulkString("CREATE").bulkString(key).bulkString(group.name)
+                        .bulkString(group.lastDelivered.toString()).bulkString("MKSTREAM");
+                command.writeTo(out);
+                for (ConsumerGroup.Consumer consumer : group.consumers.values()) {
+                    command.arrayHeader(5).bulkString("XGROUP").bulkString("CREATECONSUMER").bulkString(key)
+                            .bulkString(group.name).bulkString(consumer.name);
+                    command.writeTo(out);
+                }
+                for (ConsumerGroup.PendingEntry entry : group.pending.values()) {
+                    command.arrayHeader(12).bulkString("XCLAIM").bulkString(key).bulkString(group.name)
+                            .bulkString(entry.consumer.name).bulkString("0").bulkString(entry.id.toString())
+                            .bulkString("TIME").bulkString(Long.toString(entry.deliveryTime))
+                            .bulkString("RETRYCOUNT").bulkString(Long.toString(entry.deliveryCount))
+                            .bulkString("FORCE").bulkString("JUSTID");
+                    command.writeTo(out);
+                }
+            }
+            List<StreamId> deleted = List.copyOf(placeholders);
+            for (int start = 0; start < deleted.size(); start += REWRITE_ITEMS_PER_COMMAND) {
+                int end = Math.min(deleted.size(), start + REWRITE_ITEMS_PER_COMMAND);
+                command.arrayHeader(2 + end - start).bulkString("XDEL").bulkString(key);
+                for (int i = start; i < end; i++) {
+                    command.bulkString(deleted.get(i).toString());
+                }
+                command.writeTo(out);
+            }
+        }
+
+        private void writePlaceholder(String key, StreamId id) throws IOException {
+            command.arrayHeader(5).bulkString("XADD").bulkString(key).bulkString(id.toString()).bulkString("x").bulkString("y");
+            command.writeTo(out);
+        }
+    }
+}
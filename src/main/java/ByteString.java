@@ -0,0 +1,52 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ByteString implements Comparable<ByteString> {
+    private final byte[] bytes;
+    private int hash;
+
+    // Takes ownership of the array; callers must not modify it afterwards.
+    public ByteString(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static ByteString of(String value) {
+        return new ByteString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteString)) return false;
+        ByteString other = (ByteString) o;
+        return hashCode() == other.hashCode() && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = Arrays.hashCode(bytes);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public int compareTo(ByteString other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,23 @@
+public class CachedClock {
+    private static final long TICK_MS = 1;
+
+    private static volatile long millis = System.currentTimeMillis();
+
+    // Hot paths read a volatile field instead of calling the system clock; one daemon thread keeps it fresh.
+    static {
+        Thread.ofPlatform().name("cached-clock").daemon().start(() -> {
+            while (true) {
+                millis = System.currentTimeMillis();
+                try {
+                    Thread.sleep(TICK_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    public static long millis() {
+        return millis;
+    }
+}
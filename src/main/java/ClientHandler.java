@@ -1,27 +1,84 @@
 import java.io.*;
 import java.net.Socket;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientHandler {
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+    private static final byte[] PONG = "+PONG\r\n".getBytes();
+    private static final byte[] QUEUED = "+QUEUED\r\n".getBytes();
+    private static final byte[] MULTI = RESPWriter.encodeArray("MULTI");
+    private static final byte[] EXEC = RESPWriter.encodeArray("EXEC");
+    // Commands that can grow the dataset and are refused when maxmemory cannot be honoured.
+    private static final Set<String> DENY_OOM_COMMANDS = Set.of("SET", "GETSET", "INCR", "RPUSH", "LPUSH", "XADD");
+    // Commands that can change the dataset; they run inside the write barrier so snapshots cut between them.
+    private static final Set<String> WRITE_COMMANDS = Set.of("SET", "GETSET", "INCR", "DEL", "EXPIRE", "PEXPIRE",
+            "EXPIREAT", "PEXPIREAT", "PERSIST", "RPUSH", "LPUSH", "LPOP", "RPOP", "LMOVE", "BLPOP", "BRPOP", "BLMOVE", "XADD",
+            "XTRIM", "XDEL", "XGROUP", "XREADGROUP", "XACK", "XCLAIM", "XAUTOCLAIM", "EXEC");
+    private static final Set<String> XGROUP_SUBCOMMANDS = Set.of("CREATE", "SETID", "DESTROY", "CREATECONSUMER",
+            "DELCONSUMER");
+    // Options that end the ID list of XCLAIM.
+    private static final Set<String> XCLAIM_OPTIONS = Set.of("IDLE", "TIME", "RETRYCOUNT", "FORCE", "JUSTID", "LASTID");
+    // Commands a replica answers even while its data is stale or being loaded.
+    private static final Set<String> STALE_COMMANDS = Set.of("INFO", "PING", "REPLCONF", "CONFIG");
+    // Commands that block or take over the connection, which a transaction cannot queue.
+    private static final Set<String> NO_MULTI_COMMANDS = Set.of("WAIT", "BLPOP", "BRPOP", "BLMOVE", "PSYNC",
+            "REPLCONF");
+    // Server-wide command latency, reported by INFO latencystats.
+    private static final LatencyHistogram COMMAND_LATENCY = new LatencyHistogram();
+
     private final Socket socket;
     private final KeyValueStore kvStore;
     private final StreamStore streamStore;
     private final ListStore listStore;
     private final ReplicationManager replicationManager;
+    private final SnapshotManager snapshotManager;
     private final Map<String, String> config;
     private boolean transactionStarted = false;
-    private final List<List<String>> transactionCommands = new ArrayList<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Command> transactionCommands = new ArrayList<>();
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final RESPWriter reply = new RESPWriter();
+    // Highest AOF sequence among commands whose replies are still buffered.
+    private long unflushedAofSequence = 0;
+    // Replication offset just past this client's latest write; WAIT waits for replicas to reach it.
+    private long lastWriteOffset = 0;
+    // Set when a replica announces "REPLCONF capa eof", i.e. it accepts a streamed RDB of unknown length.
+    private boolean replicaEofCapable = false;
+    // Set on the connection a replica applies its master's stream through; the master already accepted
+    // those writes, so neither maxmemory nor the replica's read-only and stale-data policies refuse them.
+    private boolean masterLink = false;
+    // Set on the handler that replays the AOF at startup. The log holds writes that were accepted and
+    // propagated already, so they are neither refused for maxmemory nor logged and counted again.
+    private boolean loading = false;
+    // The port a replica on this connection serves clients on, from REPLCONF listening-port.
+    private int replicaListeningPort = 0;
+    // What the running command changed, in the form replicas and the AOF should apply it. Recorded by the
+    // handlers and propagated by dispatch once the command is done; null when nothing changed.
+    private byte[] change;
+    // Changes applied in sections of their own, such as blocked clients a push served, by the write
+    // ticket each took; they go out under that ticket rather than the command's.
+    private final Map<Long, byte[]> ticketedChanges = new HashMap<>();
+    // The write tickets the running command took.
+    private WriteSequence.Scope writes;
+    // Set while EXEC runs its queued commands; everything they change goes out in its MULTI block.
+    private boolean executingTransaction = false;
+    private final KeyValueStore.EvictionListener evictionListener = this::evicted;
+    // Set while a blocking list command waits for an element. The connection reads nothing more until
+    // the wait ends, so later commands are answered after it, in order.
+    private ListStore.Waiter blockedOn;
+    // The same for XREAD BLOCK.
+    private StreamStore.Waiter readingStreams;
 
     public ClientHandler(Socket socket, KeyValueStore kvStore, StreamStore streamStore,
-                         ListStore listStore, ReplicationManager replicationManager, Map<String, String> config) {
+                         ListStore listStore, ReplicationManager replicationManager, SnapshotManager snapshotManager,
+                         Map<String, String> config) {
         this.socket = socket;
         this.kvStore = kvStore;
         this.streamStore = streamStore;
         this.listStore = listStore;
         this.replicationManager = replicationManager;
+        this.snapshotManager = snapshotManager;
         this.config = config;
     }
 
@@ -29,445 +86,1645 @@ public class ClientHandler {
         try (InputStream input = socket.getInputStream();
              OutputStream output = socket.getOutputStream()) {
             System.out.println("Handling client: " + socket + ", isClosed: " + socket.isClosed());
+            RESPParser parser = new RESPParser();
             while (!socket.isClosed()) {
-                RESPParser.ParseResult result = RESPParser.parseRESP(input);
-                List<String> command = result.command;
-                if (command.isEmpty()) continue;
-
-                String cmd = command.get(0).toUpperCase();
-                if (transactionStarted && (cmd.equals("SET") || cmd.equals("INCR") || cmd.equals("GET"))) {
-                    transactionCommands.add(command);
-                    writeResponse(output, "+QUEUED\r\n");
+                Command command = parser.next();
+                if (command == null) {
+                    // Every complete command of this batch has been answered; flush once before blocking.
+                    flush(output);
+                    if (!parser.fill(input)) break;
                     continue;
                 }
-
-                switch (cmd) {
-                    case "PING":
-                        writeResponse(output, "+PONG\r\n");
-                        break;
-                    case "ECHO":
-                        writeResponse(output, RESPParser.buildBulkString(command.get(1)));
-                        break;
-                    case "SET":
-                        handleSet(command, result.bytesConsumed, output);
-                        break;
-                    case "GET":
-                        writeResponse(output, handleGet(command));
-                        break;
-                    case "CONFIG":
-                        handleConfig(command, output);
-                        break;
-                    case "REPLCONF":
-                        handleReplconf(command, output);
-                        break;
-                    case "PSYNC":
-                        replicationManager.handlePsync(socket, input, output);
-                        break;
-                    case "KEYS":
-                        handleKeys(command, output);
-                        break;
-                    case "INFO":
-                        handleInfo(command, output);
-                        break;
-                    case "TYPE":
-                        handleType(command, output);
-                        break;
-                    case "XADD":
-                        handleXadd(command, output);
-                        break;
-                    case "XRANGE":
-                        handleXrange(command, output);
-                        break;
-                    case "XREAD":
-                        handleXread(command, output);
-                        break;
-                    case "INCR":
-                        handleIncr(command, output);
-                        break;
-                    case "MULTI":
-                        transactionStarted = true;
-                        writeResponse(output, "+OK\r\n");
-                        break;
-                    case "EXEC":
-                        handleExec(output);
-                        break;
-                    case "DISCARD":
-                        handleDiscard(output);
-                        break;
-                    case "RPUSH":
-                        handleRpush(command, output);
-                        break;
-                    case "LRANGE":
-                        handleLrange(command, output);
-                        break;
-                    case "LPUSH":
-                        handleLpush(command, output);
-                        break;
-                    case "LLEN":
-                        writeResponse(output, ":" + listStore.llen(command.get(1)) + "\r\n");
-                        break;
-                    case "LPOP":
-                        handleLpop(command, output);
-                        break;
-                    case "BLPOP":
-                        handleBlpop(command, output);
-                        break;
-                    case "WAIT":
-                        handleWait(command, output);
-                        break;
-                    default:
-                        writeResponse(output, "-ERR unknown command\r\n");
+                if (command.isEmpty()) continue;
+                process(command, output);
+                CompletableFuture<?> blocked = blockedUntil();
+                if (blocked != null) {
+                    flush(output);
+                    blocked.join();
+                    unblock();
                 }
             }
         } catch (IOException e) {
             System.out.println("Client error: " + e.getMessage() + ", socket closed: " + socket.isClosed());
         } finally {
-            executor.shutdown();
+            close();
         }
     }
 
-    private void writeResponse(OutputStream output, String response) throws IOException {
-        if (!socket.isClosed()) {
-            System.out.println("Writing response: " + response + ", socket closed: " + socket.isClosed());
-            output.write(response.getBytes("UTF-8"));
-            output.flush();
+    public void process(Command command, OutputStream output) throws IOException {
+        long start = System.nanoTime();
+        String cmd = command.name();
+        boolean write = WRITE_COMMANDS.contains(cmd);
+        // A transaction runs alone, so no other write lands between its commands.
+        boolean exclusive = cmd.equals("EXEC") && transactionStarted;
+        int phase = 0;
+        if (exclusive) {
+            snapshotManager.writeBarrier().pause();
+        } else if (write) {
+            phase = snapshotManager.writeBarrier().enter();
+        }
+        try {
+            dispatch(cmd, command, output);
+        } finally {
+            if (exclusive) {
+                snapshotManager.writeBarrier().resume();
+            } else if (write) {
+                snapshotManager.writeBarrier().exit(phase);
+            }
+            // Blocking commands would report how long they waited rather than what they cost.
+            if (!isBlocking(cmd, command)) COMMAND_LATENCY.record(System.nanoTime() - start);
+        }
+        // Outside the barrier: the flush may wait for the AOF and on the socket, and a snapshot waiting
+        // for writers to drain must not wait on a slow client.
+        if (reply.size() >= FLUSH_THRESHOLD) {
+            flush(output);
+        }
+    }
+
+    private void dispatch(String cmd, Command command, OutputStream output) throws IOException {
+        if (!masterLink && !loading) {
+            String refusal = replicaRefusal(cmd);
+            if (refusal != null) {
+                reply.error(refusal);
+                return;
+            }
+        }
+        if (loading) {
+            run(cmd, command, output);
+            change = null;
+        } else if (WRITE_COMMANDS.contains(cmd)) {
+            if (writes == null) writes = replicationManager.writeSequence().newScope();
+            writes.open();
+            try {
+                run(cmd, command, output);
+            } finally {
+                writes.close();
+                publish();
+            }
         } else {
-            System.out.println("Socket closed, cannot write: " + response);
+            run(cmd, command, output);
         }
     }
 
-    private void handleSet(List<String> command, int bytesConsumed, OutputStream output) throws IOException {
-        String key = command.get(1);
-        String value = command.get(2);
+    private void run(String cmd, Command command, OutputStream output) throws IOException {
+        if (!masterLink && !loading && DENY_OOM_COMMANDS.contains(cmd) && !kvStore.performEvictions(evictionListener)) {
+            reply.error("OOM command not allowed when used memory > 'maxmemory'.");
+            return;
+        }
+        if (transactionStarted && !cmd.equals("MULTI") && !cmd.equals("EXEC") && !cmd.equals("DISCARD")) {
+            if (NO_MULTI_COMMANDS.contains(cmd) || isBlocking(cmd, command) || isBlockingRead(cmd, command)) {
+                reply.error("ERR Command not allowed inside a transaction");
+            } else {
+                transactionCommands.add(command.detach());
+                reply.raw(QUEUED);
+            }
+            return;
+        }
+        execute(cmd, command, output);
+    }
+
+    // Propagates what the command changed under the tickets it took, waiting for writes applied before
+    // them; every ticket goes out, even with nothing to write, or later writes would wait for it forever.
+    private void publish() throws IOException {
+        byte[] own = change;
+        change = null;
+        long ownTicket = writes.own() != 0 ? writes.own() : writes.size() > 0 ? writes.ticket(0) : 0;
+        if (own != null && ownTicket == 0) {
+            ownTicket = replicationManager.writeSequence().issue();
+            propagate(ownTicket, own);
+        }
+        for (int i = 0; i < writes.size(); i++) {
+            long ticket = writes.ticket(i);
+            byte[] command = ticketedChanges.remove(ticket);
+            if (ticket == ownTicket && own != null) command = command == null ? own : concat(own, command);
+            propagate(ticket, command);
+        }
+    }
+
+    // Reads on a replica run alongside the apply loop and see its writes as they land. Clients are turned
+    // away while a full resync replaces the dataset, while the link is down if stale data must not be
+    // served, and from writes when the replica is read-only, with Redis' error codes.
+    private String replicaRefusal(String cmd) {
+        ReplicaClient master = replicationManager.getMasterLink();
+        if (master == null || STALE_COMMANDS.contains(cmd)) return null;
+        if (master.isLoading()) {
+            return "LOADING Redis is loading the dataset in memory";
+        }
+        if (!master.servesStaleData() && !master.isLinkUp()) {
+            return "MASTERDOWN Link with MASTER is down and replica-serve-stale-data is set to 'no'.";
+        }
+        // EXEC only runs what MULTI queued, and writes were refused at queueing.
+        if (master.isReadOnly() && WRITE_COMMANDS.contains(cmd) && !cmd.equals("EXEC")) {
+            return "READONLY You can't write against a read only replica.";
+        }
+        return null;
+    }
+
+    private void execute(String cmd, Command command, OutputStream output) throws IOException {
+        switch (cmd) {
+            case "PING":
+                reply.raw(PONG);
+                break;
+            case "ECHO":
+                reply.bulkString(command.bytes(1));
+                break;
+            case "SET":
+                handleSet(command);
+                break;
+            case "GET":
+                handleGet(command);
+                break;
+            case "DEL":
+                handleDel(command);
+                break;
+            case "GETSET":
+                handleGetset(command);
+                break;
+            case "EXPIRE":
+                handleExpire(command, "EX");
+                break;
+            case "PEXPIRE":
+                handleExpire(command, "PX");
+                break;
+            case "EXPIREAT":
+                handleExpire(command, "EXAT");
+                break;
+            case "PEXPIREAT":
+                handleExpire(command, "PXAT");
+                break;
+            case "TTL":
+                handleTtl(command, true);
+                break;
+            case "PTTL":
+                handleTtl(command, false);
+                break;
+            case "PERSIST":
+                handlePersist(command);
+                break;
+            case "CONFIG":
+                handleConfig(command);
+                break;
+            case "REPLCONF":
+                handleReplconf(command);
+                break;
+            case "PSYNC":
+                flush(output);
+                handlePsync(command, output);
+                break;
+            case "KEYS":
+                handleKeys(command);
+                break;
+            case "INFO":
+                handleInfo(command);
+                break;
+            case "TYPE":
+                handleType(command);
+                break;
+            case "XADD":
+                handleXadd(command);
+                break;
+            case "XTRIM":
+                handleXtrim(command);
+                break;
+            case "XDEL":
+                handleXdel(command);
+                break;
+            case "XLEN":
+                reply.integer(streamStore.length(command.get(1)));
+                break;
+            case "XRANGE":
+                handleXrange(command, false);
+                break;
+            case "XREVRANGE":
+                handleXrange(command, true);
+                break;
+            case "XREAD":
+                handleXread(command, false);
+                break;
+            case "XREADGROUP":
+                handleXread(command, true);
+                break;
+            case "XGROUP":
+                handleXgroup(command);
+                break;
+            case "XACK":
+                handleXack(command);
+                break;
+            case "XPENDING":
+                handleXpending(command);
+                break;
+            case "XCLAIM":
+                handleXclaim(command);
+                break;
+            case "XAUTOCLAIM":
+                handleXautoclaim(command);
+                break;
+            case "INCR":
+                handleIncr(command);
+                break;
+            case "MULTI":
+                if (transactionStarted) {
+                    reply.error("ERR MULTI calls can not be nested");
+                } else {
+                    transactionStarted = true;
+                    reply.ok();
+                }
+                break;
+            case "EXEC":
+                handleExec(output);
+                break;
+            case "DISCARD":
+                handleDiscard();
+                break;
+            case "RPUSH":
+                handleRpush(command);
+                break;
+            case "LRANGE":
+                handleLrange(command);
+                break;
+            case "LPUSH":
+                handleLpush(command);
+                break;
+            case "LLEN":
+                reply.integer(listStore.llen(command.get(1)));
+                break;
+            case "LINDEX":
+                handleLindex(command);
+                break;
+            case "LPOP":
+                handlePop(command, true);
+                break;
+            case "RPOP":
+                handlePop(command, false);
+                break;
+            case "LMOVE":
+                handleLmove(command);
+                break;
+            case "BLPOP":
+                handleBlockingPop(command, true);
+                break;
+            case "BRPOP":
+                handleBlockingPop(command, false);
+                break;
+            case "BLMOVE":
+                handleBlmove(command);
+                break;
+            case "WAIT":
+                handleWait(command);
+                break;
+            case "SAVE":
+                handleSave();
+                break;
+            case "BGSAVE":
+                if (snapshotManager.backgroundSave()) {
+                    reply.simpleString("Background saving started");
+                } else {
+                    reply.error("ERR Background save already in progress");
+                }
+                break;
+            case "BGREWRITEAOF":
+                if (!snapshotManager.isAppendOnly()) {
+                    reply.error("ERR Append only file is disabled");
+                } else if (snapshotManager.rewriteAppendOnlyFile()) {
+                    reply.simpleString("Background append only file rewriting started");
+                } else {
+                    reply.error("ERR Background append only file rewriting already in progress");
+                }
+                break;
+            case "LASTSAVE":
+                reply.integer(snapshotManager.getLastSaveTime());
+                break;
+            default:
+                reply.error("ERR unknown command");
+        }
+    }
+
+    // Completes once the writes behind the buffered replies are on disk, for callers that must not block
+    // in flush(); null when nothing is waited for.
+    public CompletableFuture<Void> durable() {
+        if (unflushedAofSequence == 0) return null;
+        CompletableFuture<Void> written = replicationManager.propagated(unflushedAofSequence);
+        if (written == null) unflushedAofSequence = 0;
+        return written;
+    }
+
+    // Blocks until the writes behind the buffered replies are on disk, then sends the replies.
+    public void flush(OutputStream output) throws IOException {
+        if (unflushedAofSequence > 0) {
+            replicationManager.awaitPropagated(unflushedAofSequence);
+            unflushedAofSequence = 0;
+        }
+        outputLock.lock();
+        try {
+            if (socket.isClosed()) {
+                reply.reset();
+                return;
+            }
+            reply.writeTo(output);
+            output.flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void setMasterLink() {
+        masterLink = true;
+    }
+
+    public void setLoading() {
+        loading = true;
+    }
+
+    // While true, commands are only being queued; a replica counts them as applied once the EXEC arrives.
+    public boolean inTransaction() {
+        return transactionStarted;
+    }
+
+    // Completes when the blocked command has its result; null when the client is not blocked.
+    public CompletableFuture<?> blockedUntil() {
+        if (blockedOn != null) return blockedOn.result();
+        return readingStreams != null ? readingStreams.result() : null;
+    }
+
+    // Writes the reply of the command that blocked, once blockedUntil() has completed.
+    public void unblock() {
+        if (blockedOn != null) {
+            ListStore.Waiter waiter = blockedOn;
+            blockedOn = null;
+            writeBlockedReply(waiter);
+        } else if (readingStreams != null) {
+            StreamStore.Waiter waiter = readingStreams;
+            readingStreams = null;
+            writeXreadResult(waiter);
+        }
+    }
+
+    public void close() {
+        replicationManager.detach(socket);
+        if (blockedOn != null) listStore.cancel(blockedOn);
+        if (readingStreams != null) streamStore.cancel(readingStreams);
+    }
+
+    // Commands that hold the thread running them until they are done; the event loops hand these to a
+    // worker. Blocking pops and XREAD or XREADGROUP with BLOCK park the connection instead and hold nothing.
+    public static boolean isBlocking(Command command) {
+        return isBlocking(command.name(), command);
+    }
+
+    private static boolean isBlocking(String cmd, Command command) {
+        return cmd.equals("WAIT");
+    }
+
+    private static boolean isBlockingRead(String cmd, Command command) {
+        if (!cmd.equals("XREAD") && !cmd.equals("XREADGROUP")) return false;
+        for (int i = cmd.equals("XREAD") ? 1 : 4; i < command.size() && !command.get(i).equalsIgnoreCase("streams"); i++) {
+            if (command.get(i).equalsIgnoreCase("block")) return true;
+        }
+        return false;
+    }
+
+    private void handleSet(Command command) throws IOException {
+        ByteString key = command.key(1);
+        byte[] value = command.bytes(2);
         long expiryTime = Long.MAX_VALUE;
-        if (command.size() >= 5 && command.get(3).equalsIgnoreCase("PX")) {
-            try {
-                expiryTime = System.currentTimeMillis() + Long.parseLong(command.get(4));
-            } catch (NumberFormatException e) {
-                writeResponse(output, "-ERR invalid PX value\r\n");
+        boolean hasExpiry = false;
+        boolean keepTtl = false;
+        boolean returnPrevious = false;
+        KeyValueStore.SetCondition condition = KeyValueStore.SetCondition.ALWAYS;
+        for (int i = 3; i < command.size(); i++) {
+            String option = command.get(i).toUpperCase();
+            if (option.equals("EX") || option.equals("PX") || option.equals("EXAT") || option.equals("PXAT")) {
+                if (hasExpiry || keepTtl || i + 1 >= command.size()) {
+                    reply.error("ERR syntax error");
+                    return;
+                }
+                long amount;
+                try {
+                    amount = Long.parseLong(command.get(++i));
+                } catch (NumberFormatException e) {
+                    reply.error("ERR value is not an integer or out of range");
+                    return;
+                }
+                if (amount <= 0) {
+                    reply.error("ERR invalid expire time in 'set' command");
+                    return;
+                }
+                try {
+                    expiryTime = toExpiryTime(option, amount);
+                } catch (ArithmeticException e) {
+                    reply.error("ERR invalid expire time in 'set' command");
+                    return;
+                }
+                hasExpiry = true;
+            } else if ((option.equals("NX") || option.equals("XX")) && condition == KeyValueStore.SetCondition.ALWAYS) {
+                condition = option.equals("NX") ?
+                        KeyValueStore.SetCondition.IF_ABSENT : KeyValueStore.SetCondition.IF_PRESENT;
+            } else if (option.equals("KEEPTTL") && !hasExpiry) {
+                keepTtl = true;
+            } else if (option.equals("GET")) {
+                returnPrevious = true;
+            } else {
+                reply.error("ERR syntax error");
                 return;
             }
         }
-        kvStore.set(key, value, expiryTime);
-        replicationManager.propagateCommand(RESPParser.buildArray("SET", key, value), bytesConsumed);
-        writeResponse(output, "+OK\r\n");
+        KeyValueStore.SetResult result = kvStore.set(key, value, expiryTime, condition, keepTtl);
+        if (result.applied) {
+            propagateSet(key, value, keepTtl, hasExpiry ? expiryTime : Long.MAX_VALUE);
+        }
+        if (returnPrevious) {
+            if (result.previous != null) {
+                reply.bulkString(result.previous);
+            } else {
+                reply.nullBulkString();
+            }
+        } else if (result.applied) {
+            reply.ok();
+        } else {
+            reply.nullBulkString();
+        }
+    }
+
+    // Throws ArithmeticException when the deadline does not fit in a long.
+    private static long toExpiryTime(String unit, long amount) {
+        switch (unit) {
+            case "EX":
+                return Math.addExact(CachedClock.millis(), Math.multiplyExact(amount, 1000));
+            case "PX":
+                return Math.addExact(CachedClock.millis(), amount);
+            case "EXAT":
+                return Math.multiplyExact(amount, 1000);
+            default:
+                return amount;
+        }
+    }
+
+    private void handleGetset(Command command) throws IOException {
+        ByteString key = command.key(1);
+        byte[] value = command.bytes(2);
+        KeyValueStore.SetResult result = kvStore.set(key, value, Long.MAX_VALUE,
+                KeyValueStore.SetCondition.ALWAYS, false);
+        propagateSet(key, value, false, Long.MAX_VALUE);
+        if (result.previous != null) {
+            reply.bulkString(result.previous);
+        } else {
+            reply.nullBulkString();
+        }
+    }
+
+    private void handleExpire(Command command, String unit) {
+        long amount;
+        try {
+            amount = Long.parseLong(command.get(2));
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
+        }
+        KeyValueStore.ExpireCondition condition = KeyValueStore.ExpireCondition.ALWAYS;
+        if (command.size() > 3) {
+            switch (command.get(3).toUpperCase()) {
+                case "NX":
+                    condition = KeyValueStore.ExpireCondition.IF_NO_EXPIRY;
+                    break;
+                case "XX":
+                    condition = KeyValueStore.ExpireCondition.IF_HAS_EXPIRY;
+                    break;
+                case "GT":
+                    condition = KeyValueStore.ExpireCondition.IF_GREATER;
+                    break;
+                case "LT":
+                    condition = KeyValueStore.ExpireCondition.IF_LESS;
+                    break;
+                default:
+                    reply.error("ERR Unsupported option " + command.get(3));
+                    return;
+            }
+        }
+        long expiryTime;
+        try {
+            expiryTime = toExpiryTime(unit, amount);
+        } catch (ArithmeticException e) {
+            reply.error("ERR invalid expire time in '" + command.get(0).toLowerCase() + "' command");
+            return;
+        }
+        boolean applied = kvStore.expire(command.key(1), expiryTime, condition);
+        // Sent as the absolute deadline, like SET's expiry.
+        if (applied) {
+            changed(new RESPWriter().arrayHeader(3).bulkString("PEXPIREAT").bulkString(command.bytes(1))
+                    .bulkString(Long.toString(expiryTime)).toByteArray());
+        }
+        reply.integer(applied ? 1 : 0);
+    }
+
+    private void handlePersist(Command command) {
+        boolean persisted = kvStore.persist(command.key(1));
+        if (persisted) changed(command);
+        reply.integer(persisted ? 1 : 0);
+    }
+
+    private void handleTtl(Command command, boolean inSeconds) {
+        long ttl = kvStore.ttl(command.key(1));
+        reply.integer(ttl < 0 || !inSeconds ? ttl : (ttl + 500) / 1000);
+    }
+
+    // Relative expiries are sent as an absolute PXAT so replicas and AOF replay agree on the deadline.
+    private void propagateSet(ByteString key, byte[] value, boolean keepTtl, long expiryTime) {
+        RESPWriter command = new RESPWriter();
+        if (keepTtl) {
+            command.arrayHeader(4).bulkString("SET").bulkString(key.bytes()).bulkString(value).bulkString("KEEPTTL");
+        } else if (expiryTime != Long.MAX_VALUE) {
+            command.arrayHeader(5).bulkString("SET").bulkString(key.bytes()).bulkString(value)
+                    .bulkString("PXAT").bulkString(Long.toString(expiryTime));
+        } else {
+            command.arrayHeader(3).bulkString("SET").bulkString(key.bytes()).bulkString(value);
+        }
+        changed(command.toByteArray());
+    }
+
+    private void changed(Command command) {
+        changed(command.frame());
+    }
+
+    private void changed(byte[] command) {
+        change = change == null ? command : concat(change, command);
+    }
+
+    // A change applied under a ticket of its own. Inside a transaction, which runs alone, it simply
+    // follows the commands before it.
+    private void changed(long ticket, byte[] command) {
+        if (ticket == 0 || executingTransaction) {
+            changed(command);
+        } else {
+            ticketedChanges.merge(ticket, command, (previous, next) -> concat(previous, next));
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        RESPWriter joined = new RESPWriter();
+        for (byte[] part : parts) {
+            joined.raw(part);
+        }
+        return joined.toByteArray();
+    }
+
+    // The command as received with one argument replaced, e.g. a generated stream ID filled in.
+    private static byte[] withArgument(Command command, int index, String value) {
+        RESPWriter rewritten = new RESPWriter();
+        rewritten.arrayHeader(command.size());
+        for (int i = 0; i < command.size(); i++) {
+            if (i == index) {
+                rewritten.bulkString(value);
+            } else {
+                rewritten.bulkString(command.bytes(i));
+            }
+        }
+        return rewritten.toByteArray();
     }
 
-    private String handleGet(List<String> command) {
-        String value = kvStore.get(command.get(1));
-        return value != null ? RESPParser.buildBulkString(value) : "$-1\r\n";
+    private void propagate(long ticket, byte[] command) {
+        long sequence = replicationManager.propagateCommand(ticket, command);
+        if (command == null) return;
+        if (sequence > unflushedAofSequence) unflushedAofSequence = sequence;
+        lastWriteOffset = replicationManager.getMasterOffset();
     }
 
-    private void handleConfig(List<String> command, OutputStream output) throws IOException {
+    private void handleGet(Command command) {
+        byte[] value = kvStore.get(command.key(1));
+        if (value != null) {
+            reply.bulkString(value);
+        } else {
+            reply.nullBulkString();
+        }
+    }
+
+    // DEL key [key ...]: each key goes out as a DEL of its own, under the ticket its removal took, so a
+    // write to one of the keys between two removals is ordered correctly.
+    private void handleDel(Command command) {
+        if (command.size() < 2) {
+            reply.error("ERR wrong number of arguments for 'del' command");
+            return;
+        }
+        int deleted = 0;
+        for (int i = 1; i < command.size(); i++) {
+            // Strings, lists and streams are kept apart, so the name may be taken in more than one.
+            long[] tickets = {kvStore.delete(command.key(i)), listStore.delete(command.get(i)),
+                    streamStore.delete(command.get(i))};
+            boolean found = false;
+            for (long ticket : tickets) {
+                if (ticket < 0) continue;
+                changed(ticket, delCommand(command.bytes(i)));
+                found = true;
+            }
+            if (found) deleted++;
+        }
+        reply.integer(deleted);
+    }
+
+    // Evicted keys go out as DELs, so replicas and the AOF drop them too.
+    private void evicted(ByteString key, long ticket) {
+        changed(ticket, delCommand(key.bytes()));
+    }
+
+    private static byte[] delCommand(byte[] key) {
+        return new RESPWriter().arrayHeader(2).bulkString("DEL").bulkString(key).toByteArray();
+    }
+
+    private void handleConfig(Command command) {
         if (command.size() >= 3 && command.get(1).equalsIgnoreCase("GET")) {
             String value = config.get(command.get(2));
-            writeResponse(output, value != null ?
-                    RESPParser.buildArray(command.get(2), value) : "*0\r\n");
+            if (value != null) {
+                reply.arrayHeader(2).bulkString(command.get(2)).bulkString(value);
+            } else {
+                reply.arrayHeader(0);
+            }
+        } else if (command.size() == 2 && command.get(1).equalsIgnoreCase("RESETSTAT")) {
+            COMMAND_LATENCY.reset();
+            reply.ok();
         } else {
-            writeResponse(output, "-ERR wrong CONFIG usage\r\n");
+            reply.error("ERR wrong CONFIG usage");
         }
     }
 
-    private void handleReplconf(List<String> command, OutputStream output) throws IOException {
-        if (command.size() >= 3 && command.get(1).equalsIgnoreCase("ACK")) {
-            replicationManager.updateReplicaOffset(socket, Long.parseLong(command.get(2)));
-        } else if (!command.get(1).equalsIgnoreCase("GETACK")) {
-            writeResponse(output, "+OK\r\n");
+    private void handleSave() {
+        try {
+            if (snapshotManager.save()) {
+                reply.ok();
+            } else {
+                reply.error("ERR Background save already in progress");
+            }
+        } catch (IOException e) {
+            reply.error("ERR " + e.getMessage());
         }
     }
 
-    private void handleKeys(List<String> command, OutputStream output) throws IOException {
+    // ACK, GETACK and listening-port take a value; ACK and GETACK are never answered.
+    private void handleReplconf(Command command) {
+        String option = command.size() >= 2 ? command.get(1) : null;
+        if (option == null || (command.size() < 3 && (option.equalsIgnoreCase("ACK")
+                || option.equalsIgnoreCase("GETACK") || option.equalsIgnoreCase("listening-port")))) {
+            reply.error("ERR wrong number of arguments for 'replconf' command");
+            return;
+        }
+        if (option.equalsIgnoreCase("ACK")) {
+            try {
+                replicationManager.updateReplicaOffset(socket, Long.parseLong(command.get(2)));
+            } catch (NumberFormatException e) {
+                // A malformed ACK is dropped, as Redis does.
+            }
+        } else if (option.equalsIgnoreCase("listening-port")) {
+            try {
+                replicaListeningPort = Integer.parseInt(command.get(2));
+            } catch (NumberFormatException e) {
+                reply.error("ERR value is not an integer or out of range");
+                return;
+            }
+            reply.ok();
+        } else if (option.equalsIgnoreCase("capa")) {
+            for (int i = 2; i < command.size(); i += 2) {
+                if (command.get(i).equalsIgnoreCase("eof")) replicaEofCapable = true;
+            }
+            reply.ok();
+        } else if (!option.equalsIgnoreCase("GETACK")) {
+            reply.ok();
+        }
+    }
+
+    private void handlePsync(Command command, OutputStream output) {
+        long offset;
+        try {
+            offset = command.size() > 2 ? Long.parseLong(command.get(2)) : -1;
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        replicationManager.handlePsync(socket, output, command.size() > 1 ? command.get(1) : "?", offset,
+                replicaEofCapable, replicaListeningPort);
+    }
+
+    private void handleKeys(Command command) {
         if (command.get(1).equals("*")) {
-            StringBuilder response = new StringBuilder();
-            response.append("*").append(kvStore.keys().size()).append("\r\n");
-            for (String key : kvStore.keys()) {
-                response.append(RESPParser.buildBulkString(key));
+            List<ByteString> keys = kvStore.keys();
+            reply.arrayHeader(keys.size());
+            for (ByteString key : keys) {
+                reply.bulkString(key.bytes());
             }
-            writeResponse(output, response.toString());
         }
     }
 
-    private void handleInfo(List<String> command, OutputStream output) throws IOException {
-        if (command.get(1).equalsIgnoreCase("replication")) {
-            String info = config.containsKey("replicaof") ?
-                    "role:slave" :
-                    "role:master\nmaster_replid:0123456789abcdef0123456789abcdef01234567\nmaster_repl_offset:0";
-            writeResponse(output, RESPParser.buildBulkString(info));
+    private void handleInfo(Command command) {
+        String section = command.size() > 1 ? command.get(1).toLowerCase() : "all";
+        StringBuilder info = new StringBuilder();
+        if (section.equals("replication") || section.equals("all")) {
+            info.append(replicationManager.info());
+        }
+        if (section.equals("stats") || section.equals("all")) {
+            if (info.length() > 0) info.append("\n");
+            info.append("expired_keys:").append(kvStore.getExpiredKeys())
+                    .append("\ninstantaneous_expired_keys_per_sec:").append(kvStore.getExpiredKeysPerSecond())
+                    .append("\nevicted_keys:").append(kvStore.getEvictedKeys());
+        }
+        if (section.equals("memory") || section.equals("all")) {
+            if (info.length() > 0) info.append("\n");
+            info.append("used_memory:").append(kvStore.getUsedMemory())
+                    .append("\nmaxmemory:").append(kvStore.getMaxMemory())
+                    .append("\nmaxmemory_policy:").append(kvStore.getEvictionPolicy().configName);
+        }
+        if (section.equals("persistence") || section.equals("all")) {
+            if (info.length() > 0) info.append("\n");
+            info.append(snapshotManager.info());
+        }
+        if (section.equals("latencystats") || section.equals("all")) {
+            if (info.length() > 0) info.append("\n");
+            info.append("latency_percentiles_usec_all:p50=").append(COMMAND_LATENCY.percentile(50))
+                    .append(",p99=").append(COMMAND_LATENCY.percentile(99))
+                    .append(",p99.9=").append(COMMAND_LATENCY.percentile(99.9));
         }
+        if (section.equals("keyspace") || section.equals("all")) {
+            if (info.length() > 0) info.append("\n");
+            info.append("db0:keys=").append(kvStore.size());
+        }
+        reply.bulkString(info.toString());
     }
 
-    private void handleType(List<String> command, OutputStream output) throws IOException {
-        String key = command.get(1);
-        String type = kvStore.type(key);
-        if (type.equals("none")) type = streamStore.type(key);
-        writeResponse(output, "+" + type + "\r\n");
+    private void handleType(Command command) {
+        String type = kvStore.type(command.key(1));
+        if (type.equals("none")) type = streamStore.type(command.get(1));
+        reply.simpleString(type);
     }
 
-    private void handleXadd(List<String> command, OutputStream output) throws IOException {
+    // XADD key [NOMKSTREAM] [MAXLEN|MINID [=|~] threshold [LIMIT count]] *|id field value [field value ...]
+    private void handleXadd(Command command) {
+        boolean noMkStream = false;
+        StreamStore.Trim trim = new StreamStore.Trim();
+        int idIndex = 2;
+        while (idIndex < command.size()) {
+            String option = command.get(idIndex).toUpperCase();
+            if (option.equals("NOMKSTREAM")) {
+                noMkStream = true;
+                idIndex++;
+            } else if (option.equals("MAXLEN") || option.equals("MINID") || option.equals("LIMIT")) {
+                idIndex = parseTrimOption(command, idIndex, trim);
+                if (idIndex < 0) return;
+            } else {
+                break;
+            }
+        }
+        if (command.size() - idIndex < 3 || (command.size() - idIndex - 1) % 2 != 0) {
+            reply.error("ERR wrong number of arguments for 'xadd' command");
+            return;
+        }
+        boolean trimming = trim.maxLength >= 0 || trim.minId != null;
+        if (!trimming && trim.limit >= 0) {
+            reply.error("ERR syntax error, LIMIT cannot be used without specifying a trimming strategy");
+            return;
+        }
+        if (!validTrim(trim)) return;
         try {
             String streamKey = command.get(1);
-            String entryId = command.get(2);
-            Map<String, String> fields = new HashMap<>();
-            for (int i = 3; i < command.size() - 1; i += 2) {
-                fields.put(command.get(i), command.get(i + 1));
+            String entryId = command.get(idIndex);
+            // Copied: the command's slices are only valid until the parser reads more.
+            List<String> fields = new ArrayList<>(command.subList(idIndex + 1, command.size()));
+            StreamStore.AddResult result = streamStore.add(streamKey, entryId, fields, trimming ? trim : null, noMkStream);
+            if (result.id == null) {
+                reply.nullBulkString();
+                return;
+            }
+            // Replicas store the entry under the ID chosen here, not one they would generate, and get the
+            // trim as the exact XTRIM it amounted to.
+            if (idIndex == 2) {
+                changed(withArgument(command, 2, result.id));
+            } else {
+                String[] added = new String[command.size() - idIndex + 2];
+                added[0] = "XADD";
+                added[1] = streamKey;
+                added[2] = result.id;
+                for (int i = idIndex + 1; i < command.size(); i++) {
+                    added[i - idIndex + 2] = command.get(i);
+                }
+                changed(RESPWriter.encodeArray(added));
             }
-            String resultId = streamStore.add(streamKey, entryId, fields);
-            writeResponse(output, RESPParser.buildBulkString(resultId));
+            if (result.trimmed != null) trimmed(streamKey, result.trimmed);
+            delivered(result.served);
+            reply.bulkString(result.id);
         } catch (IllegalArgumentException e) {
-            writeResponse(output, "-ERR " + e.getMessage() + "\r\n");
+            reply.error("ERR " + e.getMessage());
         }
     }
 
-    private void handleXrange(List<String> command, OutputStream output) throws IOException {
-        List<StreamStore.StreamEntry> entries = streamStore.range(
-                command.get(1), command.get(2), command.get(3));
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(entries.size()).append("\r\n");
-        for (StreamStore.StreamEntry entry : entries) {
-            response.append("*2\r\n");
-            response.append(RESPParser.buildBulkString(entry.id));
-            response.append("*").append(entry.fields.size() * 2).append("\r\n");
-            for (Map.Entry<String, String> field : entry.fields.entrySet()) {
-                response.append(RESPParser.buildBulkString(field.getKey()));
-                response.append(RESPParser.buildBulkString(field.getValue()));
+    // XTRIM key MAXLEN|MINID [=|~] threshold [LIMIT count]
+    private void handleXtrim(Command command) {
+        if (command.size() < 4) {
+            reply.error("ERR wrong number of arguments for 'xtrim' command");
+            return;
+        }
+        StreamStore.Trim trim = new StreamStore.Trim();
+        int i = 2;
+        while (i < command.size()) {
+            String option = command.get(i).toUpperCase();
+            if (!option.equals("MAXLEN") && !option.equals("MINID") && !option.equals("LIMIT")) {
+                reply.error("ERR syntax error");
+                return;
             }
+            i = parseTrimOption(command, i, trim);
+            if (i < 0) return;
+        }
+        if (trim.maxLength < 0 && trim.minId == null) {
+            reply.error("ERR syntax error, XTRIM must be called with a trimming strategy");
+            return;
         }
-        writeResponse(output, response.toString());
+        if (!validTrim(trim)) return;
+        StreamStore.TrimResult result = streamStore.trim(command.get(1), trim);
+        trimmed(command.get(1), result);
+        reply.integer(result.removed);
     }
 
-    private void handleXread(List<String> command, OutputStream output) throws IOException {
-        List<String> streamKeys = new ArrayList<>();
-        List<String> startIds = new ArrayList<>();
-        long blockMs = 0;
-
-        if (command.size() > 1 && command.get(1).equalsIgnoreCase("block")) {
-            blockMs = Long.parseLong(command.get(2));
-            int i = 3;
-            while (i < command.size() && !command.get(i).equalsIgnoreCase("streams")) {
+    // Parses MAXLEN|MINID [=|~] threshold or LIMIT count at i into trim. Returns the index after it, or -1
+    // once an error has been replied.
+    private int parseTrimOption(Command command, int i, StreamStore.Trim trim) {
+        String option = command.get(i).toUpperCase();
+        try {
+            if (option.equals("LIMIT")) {
+                if (i + 1 >= command.size()) {
+                    reply.error("ERR syntax error");
+                    return -1;
+                }
+                trim.limit = Long.parseLong(command.get(i + 1));
+                if (trim.limit < 0) {
+                    reply.error("ERR The LIMIT argument must be >= 0.");
+                    return -1;
+                }
+                return i + 2;
+            }
+            if (trim.maxLength >= 0 || trim.minId != null) {
+                reply.error("ERR syntax error, MAXLEN and MINID options at the same time are not compatible");
+                return -1;
+            }
+            if (i + 1 < command.size() && (command.get(i + 1).equals("~") || command.get(i + 1).equals("="))) {
+                trim.approximate = command.get(i + 1).equals("~");
                 i++;
             }
-            i++; // Move past "streams"
-            int keyCount = (command.size() - i) / 2;
-            for (int j = i; j < i + keyCount; j++) {
-                streamKeys.add(command.get(j));
+            if (i + 1 >= command.size()) {
+                reply.error("ERR syntax error");
+                return -1;
+            }
+            if (option.equals("MINID")) {
+                trim.minId = StreamId.parse(command.get(i + 1), 0);
+                return i + 2;
             }
-            for (int j = i + keyCount; j < command.size(); j++) {
-                startIds.add(command.get(j));
+            trim.maxLength = Long.parseLong(command.get(i + 1));
+            if (trim.maxLength < 0) {
+                reply.error("ERR The MAXLEN argument must be >= 0.");
+                return -1;
             }
+            return i + 2;
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return -1;
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private boolean validTrim(StreamStore.Trim trim) {
+        if (trim.limit >= 0 && !trim.approximate) {
+            reply.error("ERR syntax error, LIMIT cannot be used without the special ~ option");
+            return false;
+        }
+        return true;
+    }
+
+    // A trim goes to replicas as the exact trim it amounted to: up to the oldest entry left, or to empty.
+    // Replicas then agree whatever their node boundaries.
+    private void trimmed(String key, StreamStore.TrimResult result) {
+        if (result.removed == 0) return;
+        if (result.firstId != null) {
+            changed(RESPWriter.encodeArray("XTRIM", key, "MINID", result.firstId.toString()));
         } else {
-            int i = 1;
-            while (i < command.size() && !command.get(i).equalsIgnoreCase("streams")) {
+            changed(RESPWriter.encodeArray("XTRIM", key, "MAXLEN", "0"));
+        }
+    }
+
+    // XDEL key id [id ...]
+    private void handleXdel(Command command) {
+        if (command.size() < 3) {
+            reply.error("ERR wrong number of arguments for 'xdel' command");
+            return;
+        }
+        try {
+            int deleted = streamStore.delete(command.get(1), command.subList(2, command.size()));
+            if (deleted > 0) changed(command);
+            reply.integer(deleted);
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+        }
+    }
+
+    // XRANGE key start end [COUNT count] / XREVRANGE key end start [COUNT count]
+    private void handleXrange(Command command, boolean reverse) {
+        int count = 0;
+        if (command.size() == 6 && command.get(4).equalsIgnoreCase("count")) {
+            try {
+                count = (int) Math.min(Long.parseLong(command.get(5)), Integer.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                reply.error("ERR value is not an integer or out of range");
+                return;
+            }
+            // COUNT 0 or less asks for nothing.
+            if (count <= 0) {
+                reply.arrayHeader(0);
+                return;
+            }
+        } else if (command.size() != 4) {
+            reply.error("ERR syntax error");
+            return;
+        }
+        try {
+            writeStreamEntries(reverse
+                    ? streamStore.reverseRange(command.get(1), command.get(2), command.get(3), count)
+                    : streamStore.range(command.get(1), command.get(2), command.get(3), count));
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+        }
+    }
+
+    private void writeStreamEntries(List<StreamStore.StreamEntry> entries) {
+        reply.arrayHeader(entries.size());
+        for (StreamStore.StreamEntry entry : entries) {
+            reply.arrayHeader(2);
+            reply.bulkString(entry.id.toString());
+            // A pending entry deleted from the stream, read back from a consumer's history.
+            if (entry.fields == null) {
+                reply.nullArray();
+                continue;
+            }
+            reply.arrayHeader(entry.fields.size());
+            for (String field : entry.fields) {
+                reply.bulkString(field);
+            }
+        }
+    }
+
+    // XREAD [COUNT count] [BLOCK milliseconds] STREAMS key [key ...] id [id ...]
+    // XREADGROUP GROUP group consumer [COUNT count] [BLOCK milliseconds] [NOACK] STREAMS key [key ...] id [id ...]
+    private void handleXread(Command command, boolean group) {
+        int count = 0;
+        long blockMs = -1;
+        boolean noAck = false;
+        int i = 1;
+        if (group) {
+            if (command.size() < 4 || !command.get(1).equalsIgnoreCase("group")) {
+                reply.error("ERR syntax error");
+                return;
+            }
+            i = 4;
+        }
+        while (i < command.size() && !command.get(i).equalsIgnoreCase("streams")) {
+            String option = command.get(i).toUpperCase();
+            if (group && option.equals("NOACK")) {
+                noAck = true;
                 i++;
+                continue;
             }
-            i++; // Move past "streams"
-            int keyCount = (command.size() - i) / 2;
-            for (int j = i; j < i + keyCount; j++) {
-                streamKeys.add(command.get(j));
+            if (i + 1 >= command.size() || (!option.equals("COUNT") && !option.equals("BLOCK"))) {
+                reply.error("ERR syntax error");
+                return;
             }
-            for (int j = i + keyCount; j < command.size(); j++) {
-                startIds.add(command.get(j));
+            long value;
+            try {
+                value = Long.parseLong(command.get(i + 1));
+            } catch (NumberFormatException e) {
+                reply.error(option.equals("BLOCK")
+                        ? "ERR timeout is not an integer or out of range"
+                        : "ERR value is not an integer or out of range");
+                return;
             }
+            if (option.equals("COUNT")) {
+                count = (int) Math.min(Math.max(value, 0), Integer.MAX_VALUE);
+            } else if (value < 0) {
+                reply.error("ERR timeout is negative");
+                return;
+            } else {
+                blockMs = value;
+            }
+            i += 2;
         }
+        i++; // Move past "streams"
+        if (i >= command.size() || (command.size() - i) % 2 != 0) {
+            reply.error(group
+                    ? "ERR Unbalanced 'xreadgroup' list of streams: for each stream key an ID or '>' must be specified."
+                    : "ERR Unbalanced 'xread' list of streams: for each stream key an ID or '$' must be specified.");
+            return;
+        }
+        int keyCount = (command.size() - i) / 2;
+        // Copied: the command's slices are only valid until the parser reads more.
+        List<String> streamKeys = new ArrayList<>(command.subList(i, i + keyCount));
+        List<String> startIds = new ArrayList<>(command.subList(i + keyCount, command.size()));
 
-        Map<String, List<StreamStore.StreamEntry>> result = streamStore.read(streamKeys, startIds, blockMs);
-        writeResponse(output, formatXreadResponse(result, streamKeys, blockMs));
+        StreamStore.Waiter waiter;
+        try {
+            if (group) {
+                // Only new entries are worth waiting for; a read of the consumer's history answers at once.
+                if (blockMs < 0 || !startIds.stream().allMatch(">"::equals)) {
+                    StreamStore.GroupRead read = streamStore.readGroup(streamKeys, startIds, command.get(2),
+                            command.get(3), count, noAck);
+                    delivered(read.deliveries);
+                    writeXreadResponse(read.entries);
+                    return;
+                }
+                waiter = new StreamStore.Waiter(streamKeys, command.get(2), command.get(3), count, noAck);
+                delivered(streamStore.readOrBlock(waiter, blockMs));
+            } else {
+                if (blockMs < 0) {
+                    writeXreadResponse(streamStore.read(streamKeys, startIds, count));
+                    return;
+                }
+                waiter = new StreamStore.Waiter(streamKeys, startIds, count);
+                streamStore.readOrBlock(waiter, blockMs);
+            }
+        } catch (IllegalStateException e) {
+            reply.error(e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+            return;
+        }
+        if (waiter.result().isDone()) {
+            writeXreadResult(waiter);
+        } else {
+            readingStreams = waiter;
+        }
     }
 
-    private String formatXreadResponse(Map<String, List<StreamStore.StreamEntry>> result, List<String> keys, long blockMs) {
-        int nonEmptyStreams = 0;
-        for (String key : keys) {
-            if (result.containsKey(key) && !result.get(key).isEmpty()) {
-                nonEmptyStreams++;
-            }
+    // A group read whose group was destroyed or whose stream was deleted while it waited gets an error.
+    private void writeXreadResult(StreamStore.Waiter waiter) {
+        Map<String, List<StreamStore.StreamEntry>> result = waiter.result().join();
+        if (waiter.error() != null) {
+            reply.error(waiter.error());
+        } else {
+            writeXreadResponse(result);
         }
-        if (nonEmptyStreams == 0 && blockMs > 0) {
-            return "$-1\r\n";
+    }
+
+    // A null array when no stream has entries, i.e. a read that found nothing or a BLOCK that timed
+    // out, as Redis replies to XREAD and XREADGROUP.
+    private void writeXreadResponse(Map<String, List<StreamStore.StreamEntry>> result) {
+        if (result == null || result.isEmpty()) {
+            reply.nullArray();
+            return;
         }
-        if (nonEmptyStreams == 0) {
-            return "*0\r\n";
+        reply.arrayHeader(result.size());
+        for (Map.Entry<String, List<StreamStore.StreamEntry>> stream : result.entrySet()) {
+            reply.arrayHeader(2);
+            reply.bulkString(stream.getKey());
+            writeStreamEntries(stream.getValue());
         }
+    }
 
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(nonEmptyStreams).append("\r\n");
-        for (String key : keys) {
-            List<StreamStore.StreamEntry> entries = result.getOrDefault(key, new ArrayList<>());
-            if (entries.isEmpty()) continue;
-            response.append("*2\r\n");
-            response.append(RESPParser.buildBulkString(key));
-            response.append("*").append(entries.size()).append("\r\n");
-            for (StreamStore.StreamEntry entry : entries) {
-                response.append("*2\r\n");
-                response.append(RESPParser.buildBulkString(entry.id));
-                response.append("*").append(entry.fields.size() * 2).append("\r\n");
-                for (Map.Entry<String, String> field : entry.fields.entrySet()) {
-                    response.append(RESPParser.buildBulkString(field.getKey()));
-                    response.append(RESPParser.buildBulkString(field.getValue()));
+    // Replicas replay a group read as the same XREADGROUP, which hands them the same entries since their
+    // group stands where the master's did; a read that delivered nothing only created its consumer.
+    private void delivered(List<StreamStore.Delivery> deliveries) {
+        for (StreamStore.Delivery delivery : deliveries) {
+            if (delivery.count == 0) {
+                changed(RESPWriter.encodeArray("XGROUP", "CREATECONSUMER", delivery.key, delivery.group, delivery.consumer));
+            } else if (delivery.noAck) {
+                changed(RESPWriter.encodeArray("XREADGROUP", "GROUP", delivery.group, delivery.consumer, "COUNT",
+                        Integer.toString(delivery.count), "NOACK", "STREAMS", delivery.key, ">"));
+            } else {
+                changed(RESPWriter.encodeArray("XREADGROUP", "GROUP", delivery.group, delivery.consumer, "COUNT",
+                        Integer.toString(delivery.count), "STREAMS", delivery.key, ">"));
+            }
+        }
+    }
+
+    // XGROUP CREATE key group id|$ [MKSTREAM], SETID key group id|$, DESTROY key group,
+    // CREATECONSUMER key group consumer, DELCONSUMER key group consumer
+    private void handleXgroup(Command command) {
+        if (command.size() < 4) {
+            reply.error("ERR wrong number of arguments for 'xgroup' command");
+            return;
+        }
+        String subcommand = command.get(1).toUpperCase();
+        if (!XGROUP_SUBCOMMANDS.contains(subcommand)) {
+            reply.error("ERR unknown subcommand '" + command.get(1) + "'. Try XGROUP HELP.");
+            return;
+        }
+        int arguments = subcommand.equals("DESTROY") ? 4 : 5;
+        if (command.size() != arguments && !(subcommand.equals("CREATE") && command.size() == 6)) {
+            reply.error("ERR wrong number of arguments for 'xgroup|" + command.get(1).toLowerCase() + "' command");
+            return;
+        }
+        String key = command.get(2);
+        String group = command.get(3);
+        try {
+            switch (subcommand) {
+                case "CREATE": {
+                    boolean mkStream = command.size() == 6;
+                    if (mkStream && !command.get(5).equalsIgnoreCase("mkstream")) {
+                        reply.error("ERR syntax error");
+                        return;
+                    }
+                    // "$" is resolved here, so replicas start the group after the same entry.
+                    StreamId start = streamStore.createGroup(key, group, command.get(4), mkStream);
+                    changed(withArgument(command, 4, start.toString()));
+                    reply.ok();
+                    break;
+                }
+                case "SETID":
+                    changed(withArgument(command, 4, streamStore.setGroupId(key, group, command.get(4)).toString()));
+                    reply.ok();
+                    break;
+                case "DESTROY": {
+                    boolean destroyed = streamStore.destroyGroup(key, group);
+                    if (destroyed) changed(command);
+                    reply.integer(destroyed ? 1 : 0);
+                    break;
+                }
+                case "CREATECONSUMER": {
+                    boolean created = streamStore.createConsumer(key, group, command.get(4));
+                    if (created) changed(command);
+                    reply.integer(created ? 1 : 0);
+                    break;
                 }
+                default: // DELCONSUMER
+                    reply.integer(streamStore.deleteConsumer(key, group, command.get(4)));
+                    changed(command);
+                    break;
             }
+        } catch (IllegalStateException e) {
+            reply.error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
         }
-        return response.toString();
     }
 
-    private void handleIncr(List<String> command, OutputStream output) throws IOException {
+    // XACK key group id [id ...]
+    private void handleXack(Command command) {
+        if (command.size() < 4) {
+            reply.error("ERR wrong number of arguments for 'xack' command");
+            return;
+        }
         try {
-            long newValue = kvStore.increment(command.get(1));
-            writeResponse(output, ":" + newValue + "\r\n");
+            int acked = streamStore.ack(command.get(1), command.get(2), command.subList(3, command.size()));
+            if (acked > 0) changed(command);
+            reply.integer(acked);
         } catch (IllegalArgumentException e) {
-            writeResponse(output, "-ERR value is not an integer or out of range\r\n");
+            reply.error("ERR " + e.getMessage());
         }
     }
 
-    private void handleExec(OutputStream output) throws IOException {
-        if (!transactionStarted) {
-            writeResponse(output, "-ERR EXEC without MULTI\r\n");
+    // XPENDING key group [[IDLE min-idle-time] start end count [consumer]]
+    private void handleXpending(Command command) {
+        if (command.size() < 3) {
+            reply.error("ERR wrong number of arguments for 'xpending' command");
             return;
         }
-        if (transactionCommands.isEmpty()) {
-            writeResponse(output, "*0\r\n");
-            transactionStarted = false;
+        try {
+            if (command.size() == 3) {
+                writePendingSummary(streamStore.pendingSummary(command.get(1), command.get(2)));
+                return;
+            }
+            int i = 3;
+            long minIdle = 0;
+            if (command.get(3).equalsIgnoreCase("idle")) {
+                if (command.size() < 5) {
+                    reply.error("ERR syntax error");
+                    return;
+                }
+                minIdle = Long.parseLong(command.get(4));
+                i = 5;
+            }
+            if (command.size() - i != 3 && command.size() - i != 4) {
+                reply.error("ERR syntax error");
+                return;
+            }
+            int count = (int) Math.min(Math.max(Long.parseLong(command.get(i + 2)), 0), Integer.MAX_VALUE);
+            String consumer = command.size() - i == 4 ? command.get(i + 3) : null;
+            List<StreamStore.Pending> pending = streamStore.pending(command.get(1), command.get(2), command.get(i),
+                    command.get(i + 1), count, consumer, minIdle);
+            long now = CachedClock.millis();
+            reply.arrayHeader(pending.size());
+            for (StreamStore.Pending entry : pending) {
+                reply.arrayHeader(4);
+                reply.bulkString(entry.id.toString());
+                reply.bulkString(entry.consumer);
+                reply.integer(Math.max(now - entry.deliveryTime, 0));
+                reply.integer(entry.deliveryCount);
+            }
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+        } catch (IllegalStateException e) {
+            reply.error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+        }
+    }
+
+    // [count, smallest ID, greatest ID, [[consumer, count] ...]], with nils for an empty PEL.
+    private void writePendingSummary(StreamStore.PendingSummary summary) {
+        reply.arrayHeader(4);
+        reply.integer(summary.count);
+        if (summary.count == 0) {
+            reply.nullBulkString();
+            reply.nullBulkString();
+            reply.nullArray();
             return;
         }
+        reply.bulkString(summary.first.toString());
+        reply.bulkString(summary.last.toString());
+        reply.arrayHeader(summary.consumers.size());
+        for (Map.Entry<String, Integer> consumer : summary.consumers.entrySet()) {
+            reply.arrayHeader(2);
+            reply.bulkString(consumer.getKey());
+            reply.bulkString(Integer.toString(consumer.getValue()));
+        }
+    }
 
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(transactionCommands.size()).append("\r\n");
-        for (List<String> cmd : transactionCommands) {
-            String command = cmd.get(0).toUpperCase();
-            switch (command) {
-                case "SET":
-                    handleSet(cmd, 0, new ByteArrayOutputStream());
-                    response.append("+OK\r\n");
-                    break;
-                case "INCR":
-                    try {
-                        long newValue = kvStore.increment(cmd.get(1));
-                        response.append(":").append(newValue).append("\r\n");
-                    } catch (IllegalArgumentException e) {
-                        response.append("-ERR value is not an integer or out of range\r\n");
+    // XCLAIM key group consumer min-idle-time id [id ...] [IDLE ms] [TIME unix-time-ms] [RETRYCOUNT count]
+    // [FORCE] [JUSTID] [LASTID id]
+    private void handleXclaim(Command command) {
+        if (command.size() < 6) {
+            reply.error("ERR wrong number of arguments for 'xclaim' command");
+            return;
+        }
+        StreamStore.Claim claim = new StreamStore.Claim();
+        try {
+            claim.minIdle = Math.max(Long.parseLong(command.get(4)), 0);
+        } catch (NumberFormatException e) {
+            reply.error("ERR Invalid min-idle-time argument for XCLAIM");
+            return;
+        }
+        int i = 5;
+        while (i < command.size() && !XCLAIM_OPTIONS.contains(command.get(i).toUpperCase())) {
+            i++;
+        }
+        List<String> ids = command.subList(5, i);
+        try {
+            for (; i < command.size(); i++) {
+                String option = command.get(i).toUpperCase();
+                if (option.equals("FORCE")) {
+                    claim.force = true;
+                } else if (option.equals("JUSTID")) {
+                    claim.justId = true;
+                } else if (i + 1 >= command.size() || !XCLAIM_OPTIONS.contains(option)) {
+                    reply.error("ERR Unrecognized XCLAIM option '" + command.get(i) + "'");
+                    return;
+                } else if (option.equals("IDLE")) {
+                    claim.deliveryTime = CachedClock.millis() - Long.parseLong(command.get(++i));
+                } else if (option.equals("TIME")) {
+                    claim.deliveryTime = Long.parseLong(command.get(++i));
+                } else if (option.equals("RETRYCOUNT")) {
+                    claim.retryCount = Math.max(Long.parseLong(command.get(++i)), 0);
+                } else {
+                    claim.lastId = StreamId.parse(command.get(++i), 0);
+                }
+            }
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+            return;
+        }
+        String key = command.get(1);
+        String group = command.get(2);
+        String consumer = command.get(3);
+        try {
+            StreamStore.ClaimResult result = streamStore.claim(key, group, consumer, ids, claim);
+            claimed(key, group, consumer, result);
+            if (claim.justId) {
+                reply.arrayHeader(result.claimed.size());
+                for (StreamStore.Pending pending : result.claimed) {
+                    reply.bulkString(pending.id.toString());
+                }
+            } else {
+                writeStreamEntries(result.entries);
+            }
+        } catch (IllegalStateException e) {
+            reply.error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+        }
+    }
+
+    // XAUTOCLAIM key group consumer min-idle-time start [COUNT count] [JUSTID]
+    private void handleXautoclaim(Command command) {
+        if (command.size() < 6) {
+            reply.error("ERR wrong number of arguments for 'xautoclaim' command");
+            return;
+        }
+        StreamStore.Claim claim = new StreamStore.Claim();
+        int count = 100;
+        try {
+            claim.minIdle = Math.max(Long.parseLong(command.get(4)), 0);
+            for (int i = 6; i < command.size(); i++) {
+                String option = command.get(i).toUpperCase();
+                if (option.equals("JUSTID")) {
+                    claim.justId = true;
+                } else if (option.equals("COUNT") && i + 1 < command.size()) {
+                    long value = Long.parseLong(command.get(++i));
+                    if (value < 1 || value > Integer.MAX_VALUE / 10) {
+                        reply.error("ERR COUNT must be > 0");
+                        return;
                     }
-                    break;
-                case "GET":
-                    response.append(handleGet(cmd));
-                    break;
-                default:
-                    response.append("-ERR Unsupported command in transaction\r\n");
+                    count = (int) value;
+                } else {
+                    reply.error("ERR syntax error");
+                    return;
+                }
             }
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
         }
+        String key = command.get(1);
+        String group = command.get(2);
+        String consumer = command.get(3);
+        try {
+            StreamStore.ClaimResult result = streamStore.autoClaim(key, group, consumer, command.get(5), count, claim);
+            claimed(key, group, consumer, result);
+            reply.arrayHeader(3);
+            reply.bulkString(result.next.toString());
+            if (claim.justId) {
+                reply.arrayHeader(result.claimed.size());
+                for (StreamStore.Pending pending : result.claimed) {
+                    reply.bulkString(pending.id.toString());
+                }
+            } else {
+                writeStreamEntries(result.entries);
+            }
+            reply.arrayHeader(result.deleted.size());
+            for (StreamId id : result.deleted) {
+                reply.bulkString(id.toString());
+            }
+        } catch (IllegalStateException e) {
+            reply.error(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR " + e.getMessage());
+        }
+    }
+
+    // Claims go to replicas one ID at a time with the delivery time and count decided here, so idle
+    // times agree whatever the replicas' clocks say. Entries found deleted leave the PEL as an XACK.
+    private void claimed(String key, String group, String consumer, StreamStore.ClaimResult result) {
+        for (StreamStore.Pending pending : result.claimed) {
+            changed(RESPWriter.encodeArray("XCLAIM", key, group, consumer, "0", pending.id.toString(),
+                    "TIME", Long.toString(pending.deliveryTime), "RETRYCOUNT", Long.toString(pending.deliveryCount),
+                    "FORCE", "JUSTID"));
+        }
+        if (!result.deleted.isEmpty()) {
+            String[] ack = new String[3 + result.deleted.size()];
+            ack[0] = "XACK";
+            ack[1] = key;
+            ack[2] = group;
+            for (int i = 0; i < result.deleted.size(); i++) {
+                ack[3 + i] = result.deleted.get(i).toString();
+            }
+            changed(RESPWriter.encodeArray(ack));
+        }
+        if (result.lastDelivered != null) {
+            changed(RESPWriter.encodeArray("XGROUP", "SETID", key, group, result.lastDelivered.toString()));
+        }
+    }
+
+    private void handleIncr(Command command) {
+        try {
+            long value = kvStore.increment(command.key(1));
+            changed(command);
+            reply.integer(value);
+        } catch (IllegalArgumentException e) {
+            reply.error("ERR value is not an integer or out of range");
+        }
+    }
+
+    private void handleExec(OutputStream output) throws IOException {
+        if (!transactionStarted) {
+            reply.error("ERR EXEC without MULTI");
+            return;
+        }
+
         transactionStarted = false;
+        reply.arrayHeader(transactionCommands.size());
+        executingTransaction = true;
+        try {
+            for (Command queued : transactionCommands) {
+                execute(queued.name(), queued, output);
+            }
+        } finally {
+            executingTransaction = false;
+        }
         transactionCommands.clear();
-        writeResponse(output, response.toString());
+        // The changes go out as one MULTI ... EXEC block, so replicas and the AOF apply all of it or none.
+        if (change != null) change = concat(MULTI, change, EXEC);
     }
 
-    private void handleDiscard(OutputStream output) throws IOException {
+    private void handleDiscard() {
         if (!transactionStarted) {
-            writeResponse(output, "-ERR DISCARD without MULTI\r\n");
+            reply.error("ERR DISCARD without MULTI");
         } else {
             transactionStarted = false;
             transactionCommands.clear();
-            writeResponse(output, "+OK\r\n");
+            reply.ok();
         }
     }
 
-    private void handleRpush(List<String> command, OutputStream output) throws IOException {
+    private void handleRpush(Command command) {
         List<String> values = command.subList(2, command.size());
-        int size = listStore.rpush(command.get(1), values);
-        writeResponse(output, ":" + size + "\r\n");
+        pushed(command, listStore.rpush(command.get(1), values));
     }
 
-    private void handleLrange(List<String> command, OutputStream output) throws IOException {
+    private void handleLrange(Command command) {
         List<String> items = listStore.lrange(command.get(1),
                 Integer.parseInt(command.get(2)), Integer.parseInt(command.get(3)));
-        StringBuilder response = new StringBuilder();
-        response.append("*").append(items.size()).append("\r\n");
+        reply.arrayHeader(items.size());
         for (String item : items) {
-            response.append(RESPParser.buildBulkString(item));
+            reply.bulkString(item);
         }
-        writeResponse(output, response.toString());
     }
 
-    private void handleLpush(List<String> command, OutputStream output) throws IOException {
+    private void handleLpush(Command command) {
         List<String> values = command.subList(2, command.size());
-        int size = listStore.lpush(command.get(1), values);
-        writeResponse(output, ":" + size + "\r\n");
+        pushed(command, listStore.lpush(command.get(1), values));
+    }
+
+    private void pushed(Command command, ListStore.PushResult result) {
+        changed(command);
+        changed(result.served);
+        reply.integer(result.length);
+    }
+
+    // Replicas never block: each element handed to a blocked client goes out as the pop it amounted to.
+    private void changed(List<ListStore.Pop> pops) {
+        for (ListStore.Pop pop : pops) {
+            if (pop.destination == null) {
+                changed(pop.ticket, RESPWriter.encodeArray(pop.fromHead ? "LPOP" : "RPOP", pop.source));
+            } else {
+                changed(pop.ticket, RESPWriter.encodeArray("LMOVE", pop.source, pop.destination,
+                        pop.fromHead ? "LEFT" : "RIGHT", pop.toHead ? "LEFT" : "RIGHT"));
+            }
+        }
     }
 
-    private void handleLpop(List<String> command, OutputStream output) throws IOException {
-        int count = command.size() >= 3 ? Integer.parseInt(command.get(2)) : 1;
-        List<String> items = listStore.lpop(command.get(1), count);
+    private void handleLindex(Command command) {
+        int index;
+        try {
+            index = Integer.parseInt(command.get(2));
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
+        }
+        String item = listStore.lindex(command.get(1), index);
+        if (item != null) {
+            reply.bulkString(item);
+        } else {
+            reply.nullBulkString();
+        }
+    }
+
+    private void handlePop(Command command, boolean fromHead) {
+        // With a count the reply is always an array, even for one element, as in Redis.
+        boolean withCount = command.size() >= 3;
+        int count = 1;
+        if (withCount) {
+            long parsed;
+            try {
+                parsed = Long.parseLong(command.get(2));
+            } catch (NumberFormatException e) {
+                parsed = -1;
+            }
+            if (parsed < 0) {
+                reply.error("ERR value is out of range, must be positive");
+                return;
+            }
+            count = (int) Math.min(parsed, Integer.MAX_VALUE);
+        }
+        List<String> items = fromHead ?
+                listStore.lpop(command.get(1), count) :
+                listStore.rpop(command.get(1), count);
+        if (items != null && !items.isEmpty()) changed(command);
         if (items == null) {
-            writeResponse(output, "$-1\r\n");
-        } else if (count == 1) {
-            writeResponse(output, RESPParser.buildBulkString(items.get(0)));
+            if (withCount) {
+                reply.nullArray();
+            } else {
+                reply.nullBulkString();
+            }
+        } else if (!withCount) {
+            reply.bulkString(items.get(0));
         } else {
-            StringBuilder response = new StringBuilder();
-            response.append("*").append(items.size()).append("\r\n");
+            reply.arrayHeader(items.size());
             for (String item : items) {
-                response.append(RESPParser.buildBulkString(item));
+                reply.bulkString(item);
             }
-            writeResponse(output, response.toString());
         }
     }
 
-    private void handleBlpop(List<String> command, OutputStream output) throws IOException {
-        double timeoutSeconds = Double.parseDouble(command.get(2));
-        long timeoutMs = (long) (timeoutSeconds * 1000);
-        System.out.println("BLPOP command: " + command + ", thread: " + Thread.currentThread().getName());
-        executor.submit(() -> {
-            try {
-                List<String> immediateResult = listStore.blpop(command.get(1), timeoutMs, () -> {
-                    try {
-                        List<String> list = listStore.getList(command.get(1));
-                        synchronized (list) {
-                            if (!list.isEmpty()) {
-                                List<String> callbackResult = new ArrayList<>();
-                                callbackResult.add(command.get(1));
-                                callbackResult.add(list.remove(0));
-                                System.out.println("BLPOP callback result: " + callbackResult);
-                                synchronized (output) {
-                                    if (!socket.isClosed()) {
-                                        StringBuilder response = new StringBuilder();
-                                        response.append("*2\r\n");
-                                        response.append(RESPParser.buildBulkString(callbackResult.get(0)));
-                                        response.append(RESPParser.buildBulkString(callbackResult.get(1)));
-                                        writeResponse(output, response.toString());
-                                    }
-                                }
-                            } else {
-                                synchronized (output) {
-                                    if (!socket.isClosed()) {
-                                        writeResponse(output, "$-1\r\n");
-                                    }
-                                }
-                            }
-                            if (list.isEmpty()) {
-                                listStore.removeList(command.get(1));
-                            }
-                        }
-                    } catch (IOException e) {
-                        System.out.println("BLPOP callback error: " + e.getMessage() + ", socket closed: " + socket.isClosed());
-                    }
-                });
-                if (immediateResult != null) {
-                    synchronized (output) {
-                        if (!socket.isClosed()) {
-                            StringBuilder response = new StringBuilder();
-                            response.append("*2\r\n");
-                            response.append(RESPParser.buildBulkString(immediateResult.get(0)));
-                            response.append(RESPParser.buildBulkString(immediateResult.get(1)));
-                            writeResponse(output, response.toString());
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("BLPOP error: " + e.getMessage() + ", socket closed: " + socket.isClosed());
+    private void handleLmove(Command command) {
+        Boolean fromHead = parseDirection(command.get(3));
+        Boolean toHead = parseDirection(command.get(4));
+        if (fromHead == null || toHead == null) {
+            reply.error("ERR syntax error");
+            return;
+        }
+        ListStore.MoveResult result = listStore.lmove(command.get(1), command.get(2), fromHead, toHead);
+        if (result.value == null) {
+            reply.nullBulkString();
+            return;
+        }
+        changed(command);
+        changed(result.served);
+        reply.bulkString(result.value);
+    }
+
+    // LEFT or RIGHT, as true for the head; null for anything else.
+    private static Boolean parseDirection(String direction) {
+        switch (direction.toUpperCase()) {
+            case "LEFT":
+                return true;
+            case "RIGHT":
+                return false;
+            default:
+                return null;
+        }
+    }
+
+    // BLPOP / BRPOP key [key ...] timeout
+    private void handleBlockingPop(Command command, boolean fromHead) {
+        long timeoutMs = parseBlockTimeout(command.get(command.size() - 1));
+        if (timeoutMs < 0) return;
+        // Copied: the command's slices are only valid until the parser reads more.
+        List<String> keys = new ArrayList<>(command.subList(1, command.size() - 1));
+        block(new ListStore.Waiter(keys, fromHead, null, false), timeoutMs);
+    }
+
+    // BLMOVE source destination LEFT|RIGHT LEFT|RIGHT timeout
+    private void handleBlmove(Command command) {
+        Boolean fromHead = parseDirection(command.get(3));
+        Boolean toHead = parseDirection(command.get(4));
+        if (fromHead == null || toHead == null) {
+            reply.error("ERR syntax error");
+            return;
+        }
+        long timeoutMs = parseBlockTimeout(command.get(5));
+        if (timeoutMs < 0) return;
+        block(new ListStore.Waiter(List.of(command.get(1)), fromHead, command.get(2), toHead), timeoutMs);
+    }
+
+    // Seconds as a float, 0 meaning forever; replies with the error and returns -1 when invalid.
+    private long parseBlockTimeout(String value) {
+        double seconds;
+        try {
+            seconds = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            seconds = Double.NaN;
+        }
+        if (Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+            reply.error("ERR timeout is not a float or out of range");
+            return -1;
+        }
+        if (seconds < 0) {
+            reply.error("ERR timeout is negative");
+            return -1;
+        }
+        return (long) Math.ceil(seconds * 1000);
+    }
+
+    private void block(ListStore.Waiter waiter, long timeoutMs) {
+        changed(listStore.popOrBlock(waiter, timeoutMs));
+        if (waiter.result().isDone()) {
+            writeBlockedReply(waiter);
+        } else {
+            blockedOn = waiter;
+        }
+    }
+
+    private void writeBlockedReply(ListStore.Waiter waiter) {
+        String[] result = waiter.result().join();
+        if (waiter.isMove()) {
+            if (result != null) {
+                reply.bulkString(result[1]);
+            } else {
+                reply.nullBulkString();
             }
-        });
+        } else if (result != null) {
+            reply.arrayHeader(2).bulkString(result[0]).bulkString(result[1]);
+        } else {
+            reply.nullArray();
+        }
     }
 
-    private void handleWait(List<String> command, OutputStream output) throws IOException {
-        int requiredAcks = Integer.parseInt(command.get(1));
-        int timeoutMs = Integer.parseInt(command.get(2));
-        long masterOffset = replicationManager.getMasterOffset();
-        int acks = replicationManager.waitForAcks(requiredAcks, timeoutMs, masterOffset);
-        writeResponse(output, ":" + acks + "\r\n");
+    private void handleWait(Command command) {
+        int requiredAcks;
+        long timeoutMs;
+        try {
+            requiredAcks = Integer.parseInt(command.get(1));
+            timeoutMs = Long.parseLong(command.get(2));
+        } catch (NumberFormatException e) {
+            reply.error("ERR value is not an integer or out of range");
+            return;
+        }
+        if (timeoutMs < 0) {
+            reply.error("ERR timeout is negative");
+            return;
+        }
+        reply.integer(replicationManager.waitForAcks(requiredAcks, timeoutMs, lastWriteOffset));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+public class Command extends AbstractList<String> implements RandomAccess {
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final String[] decoded;
+    private final int frameStart;
+    private final int frameLength;
+
+    Command(byte[] data, int[] offsets, int[] lengths, int frameStart, int frameLength) {
+        this.data = data;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.decoded = new String[offsets.length];
+        this.frameStart = frameStart;
+        this.frameLength = frameLength;
+    }
+
+    @Override
+    public String get(int index) {
+        String value = decoded[index];
+        if (value == null) {
+            value = new String(data, offsets[index], lengths[index], StandardCharsets.UTF_8);
+            decoded[index] = value;
+        }
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return offsets.length;
+    }
+
+    public String name() {
+        char[] chars = new char[lengths[0]];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toUpperCase((char) (data[offsets[0] + i] & 0xFF));
+        }
+        return new String(chars);
+    }
+
+    public byte[] bytes(int index) {
+        return Arrays.copyOfRange(data, offsets[index], offsets[index] + lengths[index]);
+    }
+
+    public ByteString key(int index) {
+        return new ByteString(bytes(index));
+    }
+
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    public int frameLength() {
+        return frameLength;
+    }
+
+    // The command exactly as it arrived, for propagating it unchanged.
+    public byte[] frame() {
+        return Arrays.copyOfRange(data, frameStart, frameStart + frameLength);
+    }
+
+    // Slices point into the parser's read buffer, which is reused once more input arrives.
+    // Commands that outlive the current batch (queued in MULTI, run on another thread) must be detached.
+    public Command detach() {
+        byte[] copy = frame();
+        int[] shifted = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            shifted[i] = offsets[i] - frameStart;
+        }
+        return new Command(copy, shifted, lengths, 0, frameLength);
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.*;
+
+// A consumer group of one stream: the last ID delivered to the group and its pending entries list
+// (PEL), the entries delivered to a consumer and not acknowledged yet. The PEL is indexed twice, by ID
+// for the whole group and by ID within each consumer, as two TreeMaps sharing the same PendingEntry
+// objects, so acknowledging, claiming or ranging over either costs O(log n) per entry. Not thread-safe;
+// StreamStore guards each group with its stream's key lock.
+public class ConsumerGroup {
+    final String name;
+    StreamId lastDelivered;
+    final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+    final Map<String, Consumer> consumers = new LinkedHashMap<>();
+
+    static class PendingEntry {
+        final StreamId id;
+        Consumer consumer;
+        long deliveryTime;
+        long deliveryCount;
+
+        PendingEntry(StreamId id, Consumer consumer, long deliveryTime, long deliveryCount) {
+            this.id = id;
+            this.consumer = consumer;
+            this.deliveryTime = deliveryTime;
+            this.deliveryCount = deliveryCount;
+        }
+    }
+
+    static class Consumer {
+        final String name;
+        final TreeMap<StreamId, PendingEntry> pending = new TreeMap<>();
+        long seenTime;
+
+        Consumer(String name, long seenTime) {
+            this.name = name;
+            this.seenTime = seenTime;
+        }
+    }
+
+    ConsumerGroup(String name, StreamId lastDelivered) {
+        this.name = name;
+        this.lastDelivered = lastDelivered;
+    }
+
+    // Null when there is no consumer of that name.
+    Consumer consumer(String name) {
+        return consumers.get(name);
+    }
+
+    Consumer createConsumer(String name, long now) {
+        Consumer consumer = new Consumer(name, now);
+        consumers.put(name, consumer);
+        return consumer;
+    }
+
+    // Removes the consumer and its pending entries from the group; returns how many it had.
+    int deleteConsumer(String name) {
+        Consumer consumer = consumers.remove(name);
+        if (consumer == null) return 0;
+        for (StreamId id : consumer.pending.keySet()) {
+            pending.remove(id);
+        }
+        return consumer.pending.size();
+    }
+
+    // Records a delivery of id to consumer. An ID already pending, after SETID moved the group back,
+    // is handed over to the new consumer and starts counting its deliveries afresh.
+    void deliver(StreamId id, Consumer consumer, long now) {
+        PendingEntry entry = pending.get(id);
+        if (entry == null) {
+            entry = new PendingEntry(id, consumer, now, 1);
+            pending.put(id, entry);
+        } else {
+            entry.deliveryTime = now;
+            entry.deliveryCount = 1;
+        }
+        assign(entry, consumer);
+    }
+
+    // Returns false when id was not pending.
+    boolean ack(StreamId id) {
+        PendingEntry entry = pending.remove(id);
+        if (entry == null) return false;
+        entry.consumer.pending.remove(id);
+        return true;
+    }
+
+    // Creates a pending entry for id owned by consumer, as XCLAIM FORCE does for an unclaimed ID.
+    PendingEntry force(StreamId id, Consumer consumer, long now) {
+        PendingEntry entry = new PendingEntry(id, consumer, now, 0);
+        pending.put(id, entry);
+        consumer.pending.put(id, entry);
+        return entry;
+    }
+
+    // Moves a pending entry to another consumer; both indexes keep the same object.
+    void assign(PendingEntry entry, Consumer consumer) {
+        if (entry.consumer != consumer) entry.consumer.pending.remove(entry.id);
+        entry.consumer = consumer;
+        consumer.pending.put(entry.id, entry);
+    }
+
+    // A deep copy, for snapshots taken under the key lock and written out after it is released.
+    ConsumerGroup copy() {
+        ConsumerGroup copy = new ConsumerGroup(name, lastDelivered);
+        for (Consumer consumer : consumers.values()) {
+            copy.createConsumer(consumer.name, consumer.seenTime);
+        }
+        for (PendingEntry entry : pending.values()) {
+            Consumer owner = copy.consumers.get(entry.consumer.name);
+            PendingEntry copied = new PendingEntry(entry.id, owner, entry.deliveryTime, entry.deliveryCount);
+            copy.pending.put(entry.id, copied);
+            owner.pending.put(entry.id, copied);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,51 @@
+// CRC-64/Jones as used for the RDB trailer: reflected polynomial 0xad93d23594c935a9, initial value 0,
+// no final xor. Table driven, eight bytes per step.
+public class Crc64 {
+    private static final long POLY = 0x95ac9329ac4bc9b5L;
+    private static final long[][] TABLES = new long[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            long crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            long crc = TABLES[0][n];
+            for (int t = 1; t < 8; t++) {
+                crc = TABLES[0][(int) (crc & 0xFF)] ^ (crc >>> 8);
+                TABLES[t][n] = crc;
+            }
+        }
+    }
+
+    public static long update(long crc, byte[] bytes, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (end - i >= 8) {
+            crc ^= (bytes[i] & 0xFFL)
+                    | (bytes[i + 1] & 0xFFL) << 8
+                    | (bytes[i + 2] & 0xFFL) << 16
+                    | (bytes[i + 3] & 0xFFL) << 24
+                    | (bytes[i + 4] & 0xFFL) << 32
+                    | (bytes[i + 5] & 0xFFL) << 40
+                    | (bytes[i + 6] & 0xFFL) << 48
+                    | (bytes[i + 7] & 0xFFL) << 56;
+            crc = TABLES[7][(int) (crc & 0xFF)]
+                    ^ TABLES[6][(int) ((crc >>> 8) & 0xFF)]
+                    ^ TABLES[5][(int) ((crc >>> 16) & 0xFF)]
+                    ^ TABLES[4][(int) ((crc >>> 24) & 0xFF)]
+                    ^ TABLES[3][(int) ((crc >>> 32) & 0xFF)]
+                    ^ TABLES[2][(int) ((crc >>> 40) & 0xFF)]
+                    ^ TABLES[1][(int) ((crc >>> 48) & 0xFF)]
+                    ^ TABLES[0][(int) (crc >>> 56)];
+            i += 8;
+        }
+        while (i < end) {
+            crc = TABLES[0][(int) ((crc ^ bytes[i++]) & 0xFF)] ^ (crc >>> 8);
+        }
+        return crc;
+    }
+}
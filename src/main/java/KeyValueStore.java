@@ -1,55 +1,571 @@
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class KeyValueStore {
+    public enum SetCondition { ALWAYS, IF_ABSENT, IF_PRESENT }
+
+    public enum ExpireCondition { ALWAYS, IF_NO_EXPIRY, IF_HAS_EXPIRY, IF_GREATER, IF_LESS }
+
+    public enum EvictionPolicy {
+        NOEVICTION("noeviction"),
+        ALLKEYS_LRU("allkeys-lru"),
+        ALLKEYS_LFU("allkeys-lfu"),
+        VOLATILE_TTL("volatile-ttl");
+
+        final String configName;
+
+        EvictionPolicy(String configName) {
+            this.configName = configName;
+        }
+
+        public static EvictionPolicy fromName(String name) {
+            for (EvictionPolicy policy : values()) {
+                if (policy.configName.equalsIgnoreCase(name)) return policy;
+            }
+            throw new IllegalArgumentException("Unknown maxmemory-policy: " + name);
+        }
+    }
+
+    public static class SetResult {
+        final boolean applied;
+        final byte[] previous;
+
+        SetResult(boolean applied, byte[] previous) {
+            this.applied = applied;
+            this.previous = previous;
+        }
+    }
+
+    public interface EntryVisitor {
+        void visit(ByteString key, byte[] value, long expiryTime) throws IOException;
+    }
+
+    // Told of each key eviction removes, with the write ticket its removal took.
+    public interface EvictionListener {
+        void evicted(ByteString key, long ticket);
+    }
+
+    private static final AtomicLong EXPIRY_SEQUENCE = new AtomicLong();
+    private static final AtomicLongFieldUpdater<ValueWithExpiry> CAPTURED_EPOCH =
+            AtomicLongFieldUpdater.newUpdater(ValueWithExpiry.class, "capturedEpoch");
+    // Rough JVM cost of an entry beyond its key and value bytes: the map node, ByteString, both
+    // array headers and ValueWithExpiry itself, plus a skip list node when the key has a TTL.
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int EXPIRY_INDEX_OVERHEAD = 48;
+    private static final int EVICTION_SAMPLES = 5;
+    private static final int LFU_INIT_VALUE = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final long LFU_DECAY_MILLIS = 60_000;
+
     private static class ValueWithExpiry {
-        String value;
-        long expiryTimeMillis;
+        final ByteString key;
+        final byte[] value;
+        final long expiryTimeMillis;
+        final long expirySequence;
+        // Access metadata packed into one long: the high bits hold the last access time in milliseconds,
+        // the low 8 bits a logarithmic access counter. Updated racily on reads; a lost update only
+        // makes eviction slightly less precise.
+        long access;
+        // Snapshot epoch in which the entry was published, and the latest snapshot that has claimed it.
+        long epoch;
+        volatile long capturedEpoch;
 
-        ValueWithExpiry(String value, long expiryTimeMillis) {
+        ValueWithExpiry(ByteString key, byte[] value, long expiryTimeMillis) {
+            this.key = key;
             this.value = value;
             this.expiryTimeMillis = expiryTimeMillis;
+            this.expirySequence = isVolatile() ? EXPIRY_SEQUENCE.incrementAndGet() : 0;
+            this.access = (CachedClock.millis() << 8) | LFU_INIT_VALUE;
+        }
+
+        int footprint() {
+            return key.length() + value.length + ENTRY_OVERHEAD + (isVolatile() ? EXPIRY_INDEX_OVERHEAD : 0);
+        }
+
+        long idleMillis(long now) {
+            return Math.max(0, now - (access >>> 8));
+        }
+
+        int frequency(long now) {
+            int counter = (int) (access & 0xFF);
+            long decay = idleMillis(now) / LFU_DECAY_MILLIS;
+            return (int) Math.max(0, counter - decay);
+        }
+
+        // Exactly one of the snapshot scan and an overwriting writer wins the claim for a given snapshot.
+        boolean capture(long snapshotEpoch) {
+            long seen;
+            do {
+                seen = capturedEpoch;
+                if (seen >= snapshotEpoch) return false;
+            } while (!CAPTURED_EPOCH.compareAndSet(this, seen, snapshotEpoch));
+            return true;
+        }
+
+        void touch() {
+            long now = CachedClock.millis();
+            int counter = frequency(now);
+            if (counter < 255) {
+                int base = Math.max(0, counter - LFU_INIT_VALUE);
+                if (ThreadLocalRandom.current().nextDouble() < 1.0 / (base * LFU_LOG_FACTOR + 1)) counter++;
+            }
+            access = (now << 8) | counter;
+        }
+
+        boolean isVolatile() {
+            return expiryTimeMillis != Long.MAX_VALUE;
+        }
+
+        boolean isExpired(long now) {
+            return expiryTimeMillis != Long.MAX_VALUE && now > expiryTimeMillis;
+        }
+    }
+
+    // ConcurrentHashMap locks per bin, so every read-modify-write below goes through compute()
+    // and is atomic for its key without a global lock.
+    private final Map<ByteString, ValueWithExpiry> store = new ConcurrentHashMap<>();
+    // Keys with a TTL ordered by deadline, so the active cycle only ever looks at keys that are due.
+    private final NavigableSet<ValueWithExpiry> expiryIndex = new ConcurrentSkipListSet<>(
+            Comparator.<ValueWithExpiry>comparingLong(v -> v.expiryTimeMillis).thenComparingLong(v -> v.expirySequence));
+    private final LongAdder expiredKeys = new LongAdder();
+    private volatile long expiredKeysPerSecond = 0;
+    private long rateWindowStart = CachedClock.millis();
+    private long rateWindowExpired = 0;
+    private final AtomicLong usedMemory = new AtomicLong();
+    private final LongAdder evictedKeys = new LongAdder();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Rolling position in the table; samples are taken from consecutive entries, which hash order scatters.
+    private Iterator<ValueWithExpiry> evictionCursor;
+    private volatile long maxMemory = 0;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.NOEVICTION;
+
+    // Point-in-time snapshots without stopping writers. Entries published before a snapshot starts carry
+    // an older epoch; a writer that replaces or removes one while the snapshot runs hands it to the
+    // snapshot first, so the scan sees every key as it was at the start. Writers announce themselves in
+    // one of two phase counters so the snapshot can wait out writes that straddle its start or its scan.
+    private static class Snapshot {
+        final long epoch;
+        final Map<ByteString, ValueWithExpiry> preserved;
+
+        Snapshot(long epoch, Map<ByteString, ValueWithExpiry> preserved) {
+            this.epoch = epoch;
+            this.preserved = preserved;
+        }
+
+        boolean isActive() {
+            return preserved != null;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(0, null);
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final LongAdder[] writers = {new LongAdder(), new LongAdder()};
+    private volatile int writePhase = 0;
+    // The snapshot thread while it waits in awaitWriters(); writers unpark it as they finish.
+    private volatile Thread awaitingWriters;
+
+    public void configureMemory(long maxMemory, EvictionPolicy policy) {
+        this.maxMemory = maxMemory;
+        this.evictionPolicy = policy;
+    }
+
+    public void set(ByteString key, byte[] value, long expiryTime) {
+        compute(key, (k, current) -> replace(current, new ValueWithExpiry(k, value, expiryTime)));
+    }
+
+    private void compute(ByteString key, BiFunction<ByteString, ValueWithExpiry, ValueWithExpiry> update) {
+        int phase = enterWrite();
+        try {
+            store.compute(key, update);
+        } finally {
+            exitWrite(phase);
+        }
+    }
+
+    private void computeIfPresent(ByteString key, BiFunction<ByteString, ValueWithExpiry, ValueWithExpiry> update) {
+        int phase = enterWrite();
+        try {
+            store.computeIfPresent(key, update);
+        } finally {
+            exitWrite(phase);
+        }
+    }
+
+    private int enterWrite() {
+        while (true) {
+            int phase = writePhase;
+            writers[phase & 1].increment();
+            if (writePhase == phase) return phase;
+            writers[phase & 1].decrement();
+        }
+    }
+
+    private void exitWrite(int phase) {
+        writers[phase & 1].decrement();
+        Thread waiting = awaitingWriters;
+        if (waiting != null) LockSupport.unpark(waiting);
+    }
+
+    // Flips the phase and waits until every write that entered under the old one has finished.
+    private void awaitWriters() {
+        awaitingWriters = Thread.currentThread();
+        int phase = writePhase;
+        writePhase = phase + 1;
+        while (writers[phase & 1].sum() != 0) {
+            LockSupport.park(this);
+        }
+        awaitingWriters = null;
+    }
+
+    // Called inside compute() so the index changes, and the write takes its place in the propagation
+    // order, atomically with the key's entry.
+    private ValueWithExpiry replace(ValueWithExpiry current, ValueWithExpiry next) {
+        if (current != next) WriteSequence.claim();
+        return swap(current, next);
+    }
+
+    // replace() for removals that take a ticket of their own.
+    private ValueWithExpiry swap(ValueWithExpiry current, ValueWithExpiry next) {
+        if (current != next) {
+            Snapshot active = snapshot;
+            long delta = 0;
+            if (current != null) {
+                preserveForSnapshot(active, current);
+                if (current.isVolatile()) expiryIndex.remove(current);
+                delta -= current.footprint();
+            }
+            if (next != null) {
+                next.epoch = active.epoch;
+                if (next.isVolatile()) expiryIndex.add(next);
+                if (current != null) {
+                    next.access = current.access;
+                    next.touch();
+                }
+                delta += next.footprint();
+            }
+            usedMemory.addAndGet(delta);
+        }
+        return next;
+    }
+
+    private boolean remove(ValueWithExpiry stored) {
+        int phase = enterWrite();
+        try {
+            Snapshot active = snapshot;
+            if (store.remove(stored.key, stored)) {
+                preserveForSnapshot(active, stored);
+                expiryIndex.remove(stored);
+                usedMemory.addAndGet(-stored.footprint());
+                return true;
+            }
+            return false;
+        } finally {
+            exitWrite(phase);
+        }
+    }
+
+    private static void preserveForSnapshot(Snapshot active, ValueWithExpiry previous) {
+        if (active.isActive() && previous.epoch < active.epoch && previous.capture(active.epoch)) {
+            active.preserved.put(previous.key, previous);
+        }
+    }
+
+    // Visits every key as of the moment the call starts while writers keep running; atSnapshotPoint runs
+    // once that moment is fixed, before any key is visited. Returns the estimated bytes of entries that
+    // had to be kept alive for the snapshot (the copy-on-write cost).
+    public long snapshot(EntryVisitor visitor, Runnable atSnapshotPoint) throws IOException {
+        snapshotLock.lock();
+        Snapshot active = new Snapshot(snapshot.epoch + 1, new ConcurrentHashMap<>());
+        try {
+            snapshot = active;
+            awaitWriters();
+            atSnapshotPoint.run();
+            for (ValueWithExpiry stored : store.values()) {
+                if (stored.epoch < active.epoch && stored.capture(active.epoch)) {
+                    visitor.visit(stored.key, stored.value, stored.expiryTimeMillis);
+                }
+            }
+            awaitWriters();
+            long preservedBytes = 0;
+            for (ValueWithExpiry previous : active.preserved.values()) {
+                visitor.visit(previous.key, previous.value, previous.expiryTimeMillis);
+                preservedBytes += previous.footprint();
+            }
+            return preservedBytes;
+        } finally {
+            snapshot = new Snapshot(active.epoch, null);
+            snapshotLock.unlock();
+        }
+    }
+
+    private void expire(ValueWithExpiry stored) {
+        if (remove(stored)) {
+            expiredKeys.increment();
+        }
+    }
+
+    // Called before commands that may grow the dataset. Evicts sampled keys until the store is back
+    // under maxmemory; returns false when that is impossible and the write must be refused. Only string
+    // keys count towards maxmemory and only they are evicted; lists and streams are not accounted.
+    public boolean performEvictions(EvictionListener listener) {
+        long limit = maxMemory;
+        if (limit <= 0 || usedMemory.get() <= limit) return true;
+        EvictionPolicy policy = evictionPolicy;
+        if (policy == EvictionPolicy.NOEVICTION) return false;
+
+        evictionLock.lock();
+        try {
+            while (usedMemory.get() > limit) {
+                ValueWithExpiry victim = policy == EvictionPolicy.VOLATILE_TTL ? nearestDeadline() : sample(policy);
+                if (victim == null) return false;
+                long ticket = evict(victim);
+                if (ticket >= 0) {
+                    evictedKeys.increment();
+                    listener.evicted(victim.key, ticket);
+                } else {
+                    expiryIndex.remove(victim);
+                }
+            }
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Removes the victim unless it was replaced meanwhile, taking a ticket under the key's bin lock so the
+    // DEL it propagates as is ordered with other writes to the key. Returns the ticket, or -1 if it was gone.
+    private long evict(ValueWithExpiry victim) {
+        long[] ticket = {-1};
+        computeIfPresent(victim.key, (k, current) -> {
+            if (current != victim) return current;
+            ticket[0] = WriteSequence.next();
+            return swap(current, null);
+        });
+        return ticket[0];
+    }
+
+    // DEL: returns the write ticket the removal took, or -1 when there was no live key.
+    public long delete(ByteString key) {
+        long[] ticket = {-1};
+        computeIfPresent(key, (k, current) -> {
+            if (!current.isExpired(CachedClock.millis())) ticket[0] = WriteSequence.next();
+            return swap(current, null);
+        });
+        return ticket[0];
+    }
+
+    // The expiry index is already ordered by deadline, so volatile-ttl takes its head instead of sampling.
+    private ValueWithExpiry nearestDeadline() {
+        return expiryIndex.isEmpty() ? null : expiryIndex.first();
+    }
+
+    private ValueWithExpiry sample(EvictionPolicy policy) {
+        long now = CachedClock.millis();
+        ValueWithExpiry best = null;
+        long bestScore = -1;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            if (evictionCursor == null || !evictionCursor.hasNext()) {
+                evictionCursor = store.values().iterator();
+                if (!evictionCursor.hasNext()) break;
+            }
+            ValueWithExpiry candidate = evictionCursor.next();
+            long score;
+            if (candidate.isExpired(now)) {
+                score = Long.MAX_VALUE;
+            } else if (policy == EvictionPolicy.ALLKEYS_LFU) {
+                score = 255 - candidate.frequency(now);
+            } else {
+                score = candidate.idleMillis(now);
+            }
+            if (score > bestScore) {
+                best = candidate;
+                bestScore = score;
+            }
         }
+        return best;
     }
 
-    private final Map<String, ValueWithExpiry> store = new HashMap<>();
+    public SetResult set(ByteString key, byte[] value, long expiryTime, SetCondition condition, boolean keepTtl) {
+        SetResult[] result = new SetResult[1];
+        compute(key, (k, current) -> {
+            ValueWithExpiry live = current != null && !current.isExpired(CachedClock.millis()) ? current : null;
+            byte[] previous = live != null ? live.value : null;
+            if (condition != SetCondition.ALWAYS && (live == null) != (condition == SetCondition.IF_ABSENT)) {
+                result[0] = new SetResult(false, previous);
+                return live != null ? current : replace(current, null);
+            }
+            long expiry = keepTtl && live != null ? live.expiryTimeMillis : expiryTime;
+            result[0] = new SetResult(true, previous);
+            return replace(current, new ValueWithExpiry(k, value, expiry));
+        });
+        return result[0];
+    }
 
-    public void set(String key, String value, long expiryTime) {
-        store.put(key, new ValueWithExpiry(value, expiryTime));
+    public boolean expire(ByteString key, long expiryTime, ExpireCondition condition) {
+        boolean[] applied = new boolean[1];
+        computeIfPresent(key, (k, current) -> {
+            long now = CachedClock.millis();
+            if (current.isExpired(now)) {
+                return replace(current, null);
+            }
+            boolean allowed;
+            if (condition == ExpireCondition.IF_NO_EXPIRY) {
+                allowed = !current.isVolatile();
+            } else if (condition == ExpireCondition.IF_HAS_EXPIRY) {
+                allowed = current.isVolatile();
+            } else if (condition == ExpireCondition.IF_GREATER) {
+                allowed = current.isVolatile() && expiryTime > current.expiryTimeMillis;
+            } else if (condition == ExpireCondition.IF_LESS) {
+                allowed = expiryTime < current.expiryTimeMillis;
+            } else {
+                allowed = true;
+            }
+            if (!allowed) return current;
+            applied[0] = true;
+            // A deadline that has already passed deletes the key straight away.
+            return replace(current, expiryTime <= now ? null : new ValueWithExpiry(k, current.value, expiryTime));
+        });
+        return applied[0];
+    }
+
+    public boolean persist(ByteString key) {
+        boolean[] applied = new boolean[1];
+        computeIfPresent(key, (k, current) -> {
+            if (current.isExpired(CachedClock.millis())) return replace(current, null);
+            if (!current.isVolatile()) return current;
+            applied[0] = true;
+            return replace(current, new ValueWithExpiry(k, current.value, Long.MAX_VALUE));
+        });
+        return applied[0];
+    }
+
+    // Remaining time to live in milliseconds, -1 for a key without expiry and -2 for a missing key.
+    public long ttl(ByteString key) {
+        ValueWithExpiry stored = store.get(key);
+        long now = CachedClock.millis();
+        if (stored == null || stored.isExpired(now)) return -2;
+        if (!stored.isVolatile()) return -1;
+        return stored.expiryTimeMillis - now;
     }
 
-    public String get(String key) {
+    public byte[] get(ByteString key) {
         ValueWithExpiry stored = store.get(key);
-        if (stored == null || (stored.expiryTimeMillis != Long.MAX_VALUE &&
-                System.currentTimeMillis() > stored.expiryTimeMillis)) {
-            store.remove(key);
+        if (stored == null) return null;
+        if (stored.isExpired(CachedClock.millis())) {
+            expire(stored);
             return null;
         }
+        stored.touch();
         return stored.value;
     }
 
-    public long increment(String key) {
-        String value = get(key);
-        long newValue;
-        if (value != null) {
-            try {
-                newValue = Long.parseLong(value) + 1;
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Value is not an integer");
+    public long increment(ByteString key) {
+        long[] result = new long[1];
+        compute(key, (k, current) -> {
+            long newValue = 1;
+            long expiryTime = Long.MAX_VALUE;
+            if (current != null && !current.isExpired(CachedClock.millis())) {
+                try {
+                    newValue = Math.addExact(Long.parseLong(new String(current.value, StandardCharsets.US_ASCII)), 1);
+                } catch (NumberFormatException | ArithmeticException e) {
+                    throw new IllegalArgumentException("Value is not an integer");
+                }
+                expiryTime = current.expiryTimeMillis;
+            }
+            result[0] = newValue;
+            return replace(current, new ValueWithExpiry(k, Long.toString(newValue).getBytes(StandardCharsets.US_ASCII), expiryTime));
+        });
+        return result[0];
+    }
+
+    // Drops every key, as a replica does before loading a full resync.
+    public void clear() {
+        for (ValueWithExpiry stored : store.values()) {
+            remove(stored);
+        }
+    }
+
+    public List<ByteString> keys() {
+        long now = CachedClock.millis();
+        List<ByteString> keys = new ArrayList<>();
+        for (Map.Entry<ByteString, ValueWithExpiry> entry : store.entrySet()) {
+            if (!entry.getValue().isExpired(now)) {
+                keys.add(entry.getKey());
             }
-        } else {
-            newValue = 1;
         }
-        set(key, String.valueOf(newValue), Long.MAX_VALUE);
-        return newValue;
+        return keys;
+    }
+
+    public String type(ByteString key) {
+        return get(key) != null ? "string" : "none";
+    }
+
+    // Reclaims due keys in deadline order until nothing is due or the time budget is spent.
+    public int activeExpireCycle(long budgetNanos) {
+        long start = System.nanoTime();
+        long now = CachedClock.millis();
+        int visited = 0;
+        long before = expiredKeys.sum();
+        for (ValueWithExpiry head : expiryIndex) {
+            if (!head.isExpired(now)) break;
+            expire(head);
+            expiryIndex.remove(head);
+            if ((++visited & 15) == 0 && System.nanoTime() - start > budgetNanos) break;
+        }
+        updateExpiredRate(now);
+        return (int) (expiredKeys.sum() - before);
+    }
+
+    private void updateExpiredRate(long now) {
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= 1000) {
+            long total = expiredKeys.sum();
+            expiredKeysPerSecond = (total - rateWindowExpired) * 1000 / elapsed;
+            rateWindowExpired = total;
+            rateWindowStart = now;
+        }
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    public long getExpiredKeysPerSecond() {
+        return expiredKeysPerSecond;
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.sum();
+    }
+
+    public long getUsedMemory() {
+        return usedMemory.get();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
     }
 
-    public Set<String> keys() {
-        return store.keySet();
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
     }
 
-    public String type(String key) {
-        return store.containsKey(key) ? "string" : "none";
+    public int size() {
+        return store.size();
     }
-}
\ No newline at end of file
+}
@@ -1,166 +1,418 @@
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ListStore {
-    private final Map<String, List<String>> lists = new ConcurrentHashMap<>();
-    private final Map<String, BlockingQueue<Runnable>> blockedClients = new ConcurrentHashMap<>();
-
-    public int rpush(String key, List<String> values) {
-        List<String> list = lists.computeIfAbsent(key, k -> new ArrayList<>());
-        synchronized (list) {
-            list.addAll(values);
-            int sizeAfterPush = list.size();
-            System.out.println("RPUSH key: " + key + ", values: " + values + ", list: " + list);
-            BlockingQueue<Runnable> queue = blockedClients.get(key);
-            if (queue != null) {
-                List<Runnable> clientsToNotify = new ArrayList<>();
-                queue.drainTo(clientsToNotify);
-                for (Runnable client : clientsToNotify) {
-                    if (!list.isEmpty()) {
-                        System.out.println("RPUSH notifying client for key: " + key);
-                        client.run();
-                    }
-                }
-                if (list.isEmpty()) {
-                    lists.remove(key);
-                    blockedClients.remove(key);
-                }
-            }
-            return sizeAfterPush;
+    private final Map<String, QuickList> lists = new ConcurrentHashMap<>();
+    // Clients blocked on each key, oldest first, guarded by the key's lock. A client blocked on several
+    // keys is queued on each; whichever key serves it first claims it.
+    private final Map<String, LinkedHashSet<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+    private final TimerWheel timerWheel;
+
+    public ListStore(TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // An element taken from the head or tail of source, and for a move pushed onto destination. Blocked
+    // clients served by a push are reported this way, so replicas replay the push followed by the
+    // LPOP, RPOP or LMOVE each client amounted to. Each is applied under locks of its own, so it carries
+    // the write ticket it took there.
+    public static class Pop {
+        final String source;
+        final boolean fromHead;
+        final String destination;
+        final boolean toHead;
+        final long ticket;
+
+        Pop(String source, boolean fromHead, String destination, boolean toHead, long ticket) {
+            this.source = source;
+            this.fromHead = fromHead;
+            this.destination = destination;
+            this.toHead = toHead;
+            this.ticket = ticket;
+        }
+    }
+
+    public static class PushResult {
+        final int length;
+        final List<Pop> served;
+
+        PushResult(int length, List<Pop> served) {
+            this.length = length;
+            this.served = served;
+        }
+    }
+
+    public static class MoveResult {
+        final String value;
+        final List<Pop> served;
+
+        MoveResult(String value, List<Pop> served) {
+            this.value = value;
+            this.served = served;
+        }
+    }
+
+    // A client blocked in BLPOP, BRPOP or BLMOVE. Its result is the key and element it got, or null on
+    // timeout; nothing runs on its behalf meanwhile, so an idle consumer costs only this object.
+    public static class Waiter {
+        final List<String> keys;
+        final boolean fromHead;
+        final String destination;
+        final boolean toHead;
+        private final CompletableFuture<String[]> result = new CompletableFuture<>();
+        // Set by whichever of a push, the timeout or a disconnect gets to the waiter first.
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile TimerWheel.Timeout timeout;
+
+        public Waiter(List<String> keys, boolean fromHead, String destination, boolean toHead) {
+            this.keys = keys;
+            this.fromHead = fromHead;
+            this.destination = destination;
+            this.toHead = toHead;
+        }
+
+        public CompletableFuture<String[]> result() {
+            return result;
+        }
+
+        public boolean isMove() {
+            return destination != null;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
         }
     }
 
-    public int lpush(String key, List<String> values) {
-        List<String> list = lists.computeIfAbsent(key, k -> new ArrayList<>());
-        synchronized (list) {
+    private int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % locks.length;
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return locks[stripe(key)];
+    }
+
+    // Stripes are always taken in index order, so two moves between the same lists cannot deadlock.
+    private void lockBoth(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        locks[Math.min(a, b)].lock();
+        if (a != b) locks[Math.max(a, b)].lock();
+    }
+
+    private void unlockBoth(String first, String second) {
+        int a = stripe(first);
+        int b = stripe(second);
+        if (a != b) locks[Math.max(a, b)].unlock();
+        locks[Math.min(a, b)].unlock();
+    }
+
+    public PushResult rpush(String key, List<String> values) {
+        return push(key, values, false);
+    }
+
+    public PushResult lpush(String key, List<String> values) {
+        return push(key, values, true);
+    }
+
+    private PushResult push(String key, List<String> values, boolean atHead) {
+        int length;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            QuickList list = lists.computeIfAbsent(key, k -> new QuickList());
             for (String value : values) {
-                list.add(0, value);
+                if (atHead) {
+                    list.pushHead(value);
+                } else {
+                    list.pushTail(value);
+                }
             }
-            int sizeAfterPush = list.size();
-            System.out.println("LPUSH key: " + key + ", values: " + values + ", list: " + list);
-            BlockingQueue<Runnable> queue = blockedClients.get(key);
-            if (queue != null) {
-                List<Runnable> clientsToNotify = new ArrayList<>();
-                queue.drainTo(clientsToNotify);
-                for (Runnable client : clientsToNotify) {
-                    if (!list.isEmpty()) {
-                        System.out.println("LPUSH notifying client for key: " + key);
-                        client.run();
-                    }
+            length = list.size();
+        } finally {
+            lock.unlock();
+        }
+        return new PushResult(length, serveBlocked(key));
+    }
+
+    // LMOVE: null when the source is empty. The element lands on the destination under both locks, so
+    // it is never in neither list.
+    public MoveResult lmove(String source, String destination, boolean fromHead, boolean toHead) {
+        String value;
+        lockBoth(source, destination);
+        try {
+            QuickList list = lists.get(source);
+            if (list == null) return new MoveResult(null, Collections.emptyList());
+            WriteSequence.claim();
+            value = take(source, list, fromHead);
+            put(destination, value, toHead);
+        } finally {
+            unlockBoth(source, destination);
+        }
+        return new MoveResult(value, serveBlocked(destination));
+    }
+
+    // Serves the waiter at once from the first of its keys holding an element. Otherwise queues it on
+    // every key and arms its timeout (0 waits forever); a later push completes it. Returns what was
+    // popped for it, followed by any clients a BLMOVE's push to its destination served in turn.
+    public List<Pop> popOrBlock(Waiter waiter, long timeoutMs) {
+        for (String key : waiter.keys) {
+            String destination = waiter.isMove() ? waiter.destination : key;
+            String value;
+            long ticket;
+            lockBoth(key, destination);
+            try {
+                QuickList list = lists.get(key);
+                if (list == null) {
+                    waiters.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+                    continue;
                 }
-                if (list.isEmpty()) {
-                    lists.remove(key);
-                    blockedClients.remove(key);
+                // A push to a key it was queued on above may have served it already.
+                if (!waiter.claim()) return Collections.emptyList();
+                ticket = WriteSequence.next();
+                value = take(key, list, waiter.fromHead);
+                if (waiter.isMove()) put(waiter.destination, value, waiter.toHead);
+            } finally {
+                unlockBoth(key, destination);
+            }
+            List<Pop> popped = new ArrayList<>();
+            popped.add(new Pop(key, waiter.fromHead, waiter.destination, waiter.toHead, ticket));
+            complete(waiter, key, value);
+            if (waiter.isMove()) popped.addAll(serveBlocked(waiter.destination));
+            return popped;
+        }
+        if (timeoutMs > 0) waiter.timeout = timerWheel.schedule(timeoutMs, () -> cancel(waiter));
+        return Collections.emptyList();
+    }
+
+    // Ends a wait without an element, on timeout or when the client goes away.
+    public void cancel(Waiter waiter) {
+        if (!waiter.claim()) return;
+        unregister(waiter);
+        waiter.result.complete(null);
+    }
+
+    // Hands elements pushed onto key to the clients blocked on it, oldest first, as Redis does right
+    // after the command that pushed. A BLMOVE served this way pushes onto its destination, whose own
+    // waiters are served next.
+    private List<Pop> serveBlocked(String key) {
+        if (waiters.isEmpty()) return Collections.emptyList();
+        List<Pop> served = new ArrayList<>();
+        ArrayDeque<String> ready = new ArrayDeque<>();
+        ready.add(key);
+        while ((key = ready.poll()) != null) {
+            Waiter waiter;
+            while ((waiter = oldestWaiter(key)) != null) {
+                String destination = waiter.isMove() ? waiter.destination : key;
+                String value;
+                long ticket;
+                lockBoth(key, destination);
+                try {
+                    QuickList list = lists.get(key);
+                    if (list == null) break;
+                    LinkedHashSet<Waiter> queue = waiters.get(key);
+                    // Another thread got to the queue between the peek and the locks; look again.
+                    if (queue == null || !queue.remove(waiter)) continue;
+                    if (queue.isEmpty()) waiters.remove(key);
+                    // Timed out or disconnected meanwhile; it is off this queue now either way.
+                    if (!waiter.claim()) continue;
+                    ticket = WriteSequence.next();
+                    value = take(key, list, waiter.fromHead);
+                    if (waiter.isMove()) put(waiter.destination, value, waiter.toHead);
+                } finally {
+                    unlockBoth(key, destination);
                 }
+                served.add(new Pop(key, waiter.fromHead, waiter.destination, waiter.toHead, ticket));
+                complete(waiter, key, value);
+                if (waiter.isMove() && waiters.containsKey(waiter.destination)) ready.add(waiter.destination);
             }
-            return sizeAfterPush;
+        }
+        return served;
+    }
+
+    // The oldest client blocked on key, if the list has an element for it.
+    private Waiter oldestWaiter(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue = waiters.get(key);
+            if (queue == null || queue.isEmpty() || !lists.containsKey(key)) return null;
+            return queue.iterator().next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void complete(Waiter waiter, String key, String value) {
+        TimerWheel.Timeout timeout = waiter.timeout;
+        if (timeout != null) timeout.cancel();
+        unregister(waiter);
+        waiter.result.complete(new String[]{key, value});
+    }
+
+    // Takes one key lock at a time, so it is only called with none held.
+    private void unregister(Waiter waiter) {
+        for (String key : waiter.keys) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                LinkedHashSet<Waiter> queue = waiters.get(key);
+                if (queue != null && queue.remove(waiter) && queue.isEmpty()) waiters.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Called under the key's lock; empty lists are removed, as Redis deletes them.
+    private String take(String key, QuickList list, boolean fromHead) {
+        String value = fromHead ? list.popHead() : list.popTail();
+        if (list.isEmpty()) lists.remove(key);
+        return value;
+    }
+
+    private void put(String key, String value, boolean atHead) {
+        QuickList list = lists.computeIfAbsent(key, k -> new QuickList());
+        if (atHead) {
+            list.pushHead(value);
+        } else {
+            list.pushTail(value);
         }
     }
 
     public List<String> lrange(String key, int start, int stop) {
-        List<String> list = lists.getOrDefault(key, new ArrayList<>());
-        if (list.isEmpty()) {
-            return new ArrayList<>();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            QuickList list = lists.get(key);
+            if (list == null || list.isEmpty()) {
+                return new ArrayList<>();
+            }
+            int adjustedStart = start < 0 ? list.size() + start : start;
+            int adjustedStop = stop < 0 ? list.size() + stop : Math.min(stop, list.size() - 1);
+            adjustedStart = Math.max(adjustedStart, 0);
+            adjustedStop = Math.max(adjustedStop, -1);
+            if (adjustedStart > adjustedStop || adjustedStart >= list.size()) {
+                return new ArrayList<>();
+            }
+            return list.range(adjustedStart, adjustedStop);
+        } finally {
+            lock.unlock();
         }
-        int adjustedStart = start < 0 ? list.size() + start : start;
-        int adjustedStop = stop < 0 ? list.size() + stop : Math.min(stop, list.size() - 1);
-        adjustedStart = Math.max(adjustedStart, 0);
-        adjustedStop = Math.max(adjustedStop, -1);
-        if (adjustedStart > adjustedStop || adjustedStart >= list.size()) {
-            return new ArrayList<>();
+    }
+
+    // Negative indexes count from the tail; null when out of range.
+    public String lindex(String key, int index) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            QuickList list = lists.get(key);
+            if (list == null) return null;
+            int adjusted = index < 0 ? list.size() + index : index;
+            if (adjusted < 0 || adjusted >= list.size()) return null;
+            return list.get(adjusted);
+        } finally {
+            lock.unlock();
         }
-        return new ArrayList<>(list.subList(adjustedStart, adjustedStop + 1));
     }
 
     public int llen(String key) {
-        return lists.getOrDefault(key, new ArrayList<>()).size();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            QuickList list = lists.get(key);
+            return list == null ? 0 : list.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public List<String> lpop(String key, int count) {
-        List<String> list = lists.getOrDefault(key, new ArrayList<>());
-        if (list.isEmpty()) {
-            return null;
-        }
-        List<String> result = new ArrayList<>();
-        count = Math.min(count, list.size());
-        synchronized (list) {
+        return pop(key, count, true);
+    }
+
+    public List<String> rpop(String key, int count) {
+        return pop(key, count, false);
+    }
+
+    private List<String> pop(String key, int count, boolean fromHead) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            QuickList list = lists.get(key);
+            if (list == null || list.isEmpty()) {
+                return null;
+            }
+            List<String> result = new ArrayList<>();
+            count = Math.min(count, list.size());
+            if (count == 0) {
+                return result;
+            }
+            WriteSequence.claim();
             for (int i = 0; i < count; i++) {
-                result.add(list.remove(0));
+                result.add(fromHead ? list.popHead() : list.popTail());
             }
             if (list.isEmpty()) {
                 lists.remove(key);
-                blockedClients.remove(key);
             }
+            return result;
+        } finally {
+            lock.unlock();
         }
-        return result;
     }
 
-    public List<String> blpop(String key, long timeoutMs, Runnable callback) {
-        System.out.println("BLPOP key: " + key + ", timeoutMs: " + timeoutMs + ", thread: " + Thread.currentThread().getName());
-        BlockingQueue<Runnable> queue = blockedClients.computeIfAbsent(key, k -> new LinkedBlockingQueue<>());
-        List<String> list = lists.getOrDefault(key, new ArrayList<>());
-
-        synchronized (list) {
-            if (!list.isEmpty()) {
-                List<String> result = new ArrayList<>();
-                result.add(key);
-                result.add(list.remove(0));
-                System.out.println("BLPOP immediate result: " + result);
-                if (list.isEmpty()) {
-                    lists.remove(key);
-                    blockedClients.remove(key);
-                }
-                return result;
-            }
-            queue.offer(callback);
-            System.out.println("BLPOP registered in queue for key: " + key + ", queue size: " + queue.size());
-            if (timeoutMs > 0) {
-                try {
-                    Thread.sleep(timeoutMs); // Wait for the timeout duration
-                    boolean taken = queue.remove(callback);
-                    if (taken) {
-                        System.out.println("BLPOP timeout expired for key: " + key + ", queue size: " + queue.size());
-                        if (queue.isEmpty()) {
-                            blockedClients.remove(key);
-                        }
-                        synchronized (list) {
-                            if (list.isEmpty()) {
-                                callback.run();
-                            }
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    System.out.println("BLPOP timeout interrupted: " + e.getMessage());
-                    queue.remove(callback);
-                    if (queue.isEmpty()) {
-                        blockedClients.remove(key);
-                    }
-                    synchronized (list) {
-                        if (list.isEmpty()) {
-                            callback.run();
-                        }
-                    }
-                }
-            }
-            return null;
+    // DEL: returns the write ticket the removal took, or -1 when there was no list. Clients blocked on
+    // the key keep waiting.
+    public long delete(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (lists.remove(key) == null) return -1;
+            return WriteSequence.next();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public List<String> getList(String key) {
-        return lists.getOrDefault(key, new ArrayList<>());
+    public interface ListVisitor {
+        void visit(String key, List<String> values) throws IOException;
     }
 
-    public void removeList(String key) {
-        List<String> list = lists.get(key);
-        if (list != null) {
-            synchronized (list) {
-                if (list.isEmpty()) {
-                    lists.remove(key);
-                    blockedClients.remove(key);
-                }
+    // Copies each list under its key lock, so every list is consistent on its own but lists are
+    // captured one after another rather than at a single instant.
+    public void snapshot(ListVisitor visitor) throws IOException {
+        for (String key : lists.keySet()) {
+            List<String> copy = null;
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                QuickList list = lists.get(key);
+                if (list != null && !list.isEmpty()) copy = list.toList();
+            } finally {
+                lock.unlock();
+            }
+            if (copy != null) visitor.visit(key, copy);
+        }
+    }
+
+    public void clear() {
+        for (String key : lists.keySet()) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                lists.remove(key);
+            } finally {
+                lock.unlock();
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -4,14 +4,26 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     private static final int DEFAULT_PORT = 6379;
+    private static final String DEFAULT_AOF_FILENAME = "appendonly.aof";
+    private static final String DEFAULT_REPL_BACKLOG_SIZE = "1mb";
+    private static final String DEFAULT_REPLICA_OUTPUT_LIMIT = "256mb 64mb 60";
+    private static final String DEFAULT_QUERY_BUFFER_LIMIT = "1gb";
+    private static final long CRON_PERIOD_MS = 100;
+    private static final long ACTIVE_EXPIRE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(CRON_PERIOD_MS) / 4;
     private final Map<String, String> config = new HashMap<>();
     private final KeyValueStore kvStore = new KeyValueStore();
-    private final StreamStore streamStore = new StreamStore();
-    private final ListStore listStore = new ListStore();
-    private final ReplicationManager replicationManager = new ReplicationManager();
+    // Timeouts of blocked clients, for every store that blocks.
+    private final TimerWheel timerWheel = new TimerWheel();
+    private final ListStore listStore = new ListStore(timerWheel);
+    private final StreamStore streamStore = new StreamStore(timerWheel);
+    private final SnapshotManager snapshotManager = new SnapshotManager(kvStore, listStore, streamStore, config);
+    private ReplicationManager replicationManager;
 
     public static void main(String[] args) {
         try {
@@ -23,24 +35,56 @@ public class Main {
 
     public void start(String[] args) throws IOException {
         parseArguments(args);
-        loadRDBFile();
+        configureMemory();
+        replicationManager = new ReplicationManager(snapshotManager,
+                (int) parseMemory(config.getOrDefault("repl-backlog-size", DEFAULT_REPL_BACKLOG_SIZE)),
+                parseOutputLimit(config.getOrDefault("replica-output-buffer-limit", DEFAULT_REPLICA_OUTPUT_LIMIT)));
+        loadData();
+        startServerCron();
 
         int port = config.containsKey("port") ? Integer.parseInt(config.get("port")) : DEFAULT_PORT;
         if (config.containsKey("replicaof")) {
-            new Thread(() -> new ReplicaClient(config, kvStore, replicationManager).connect()).start();
+            ReplicaClient replicaClient = new ReplicaClient(config, kvStore, listStore, streamStore, this::newClientHandler);
+            replicationManager.setMasterLink(replicaClient);
+            new Thread(replicaClient::connect).start();
         }
 
+        String ioMode = config.getOrDefault("io-mode", "nio");
+        if (ioMode.equals("nio")) {
+            int ioThreads = config.containsKey("io-threads") ?
+                    Integer.parseInt(config.get("io-threads")) : Runtime.getRuntime().availableProcessors();
+            long queryBufferLimit = parseMemory(config.getOrDefault("client-query-buffer-limit", DEFAULT_QUERY_BUFFER_LIMIT));
+            new NioServer(port, ioThreads, queryBufferLimit, this::newClientHandler).start();
+        } else if (ioMode.equals("virtual")) {
+            acceptLoop(port, Thread.ofVirtual().name("client-", 0));
+        } else {
+            acceptLoop(port, Thread.ofPlatform().name("client-", 0));
+        }
+    }
+
+    private void acceptLoop(int port, Thread.Builder threadBuilder) throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             serverSocket.setReuseAddress(true);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("New client connected");
-                new Thread(() -> new ClientHandler(clientSocket, kvStore, streamStore,
-                        listStore, replicationManager, config).handle()).start();
+                threadBuilder.start(() -> newClientHandler(clientSocket).handle());
             }
         }
     }
 
+    private ClientHandler newClientHandler(Socket socket) {
+        return new ClientHandler(socket, kvStore, streamStore, listStore, replicationManager, snapshotManager, config);
+    }
+
+    private void startServerCron() {
+        ScheduledExecutorService cron = Executors.newSingleThreadScheduledExecutor(
+                runnable -> Thread.ofPlatform().name("server-cron").daemon().unstarted(runnable));
+        cron.scheduleAtFixedRate(() -> kvStore.activeExpireCycle(ACTIVE_EXPIRE_BUDGET_NANOS),
+                CRON_PERIOD_MS, CRON_PERIOD_MS, TimeUnit.MILLISECONDS);
+        cron.scheduleAtFixedRate(replicationManager::replicationCron, 1, 1, TimeUnit.SECONDS);
+    }
+
     private void parseArguments(String[] args) {
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -48,6 +92,18 @@ public class Main {
                 case "--dbfilename":
                 case "--port":
                 case "--replicaof":
+                case "--io-mode":
+                case "--io-threads":
+                case "--maxmemory":
+                case "--maxmemory-policy":
+                case "--appendonly":
+                case "--appendfsync":
+                case "--appendfilename":
+                case "--repl-backlog-size":
+                case "--replica-output-buffer-limit":
+                case "--replica-serve-stale-data":
+                case "--replica-read-only":
+                case "--client-query-buffer-limit":
                     if (i + 1 < args.length) {
                         config.put(args[i].substring(2), args[i + 1]);
                         i++;
@@ -57,42 +113,65 @@ public class Main {
         }
     }
 
+    private void configureMemory() {
+        long maxMemory = config.containsKey("maxmemory") ? parseMemory(config.get("maxmemory")) : 0;
+        KeyValueStore.EvictionPolicy policy = KeyValueStore.EvictionPolicy.fromName(
+                config.getOrDefault("maxmemory-policy", "noeviction"));
+        kvStore.configureMemory(maxMemory, policy);
+    }
+
+    // Accepts plain bytes or a kb/mb/gb suffix, e.g. "100mb".
+    private static long parseMemory(String value) {
+        String lower = value.trim().toLowerCase();
+        long unit = 1;
+        if (lower.endsWith("kb")) {
+            unit = 1024;
+        } else if (lower.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (lower.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) lower = lower.substring(0, lower.length() - 2);
+        return Long.parseLong(lower) * unit;
+    }
+
+    // "<hard> <soft> <soft seconds>", as the replica class of Redis' client-output-buffer-limit.
+    private static ReplicaConnection.OutputLimit parseOutputLimit(String value) {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length != 3) throw new IllegalArgumentException("Invalid replica-output-buffer-limit: " + value);
+        return new ReplicaConnection.OutputLimit(parseMemory(parts[0]), parseMemory(parts[1]),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(parts[2])));
+    }
+
+    // With appendonly enabled the log is the source of truth and replaces the RDB load, as in Redis.
+    private void loadData() throws IOException {
+        if (!config.getOrDefault("appendonly", "no").equalsIgnoreCase("yes")) {
+            loadRDBFile();
+            return;
+        }
+        Path aofPath = Paths.get(config.getOrDefault("dir", "."), config.getOrDefault("appendfilename", DEFAULT_AOF_FILENAME));
+        boolean existed = Files.exists(aofPath);
+        if (existed) {
+            int replayed = AppendOnlyFile.replay(aofPath, newClientHandler(new Socket()));
+            System.out.println("Replayed " + replayed + " commands from " + aofPath);
+        } else {
+            loadRDBFile();
+        }
+        AppendOnlyFile aof = new AppendOnlyFile(aofPath,
+                AppendOnlyFile.parsePolicy(config.getOrDefault("appendfsync", "everysec")), snapshotManager);
+        replicationManager.setAppendOnlyFile(aof);
+        snapshotManager.setAppendOnlyFile(aof);
+        // A fresh log starts from whatever the RDB held, otherwise the next restart would lose it.
+        if (!existed) aof.rewriteInBackground();
+    }
+
     private void loadRDBFile() {
         if (!config.containsKey("dir") || !config.containsKey("dbfilename")) return;
 
         Path path = Paths.get(config.get("dir"), config.get("dbfilename"));
+        if (!Files.exists(path)) return;
         try {
-            byte[] bytes = Files.readAllBytes(path);
-            int databaseSectionOffset = -1;
-            for (int i = 0; i < bytes.length; i++) {
-                if (bytes[i] == (byte) 0xfe) {
-                    databaseSectionOffset = i;
-                    break;
-                }
-            }
-
-            for (int i = databaseSectionOffset + 4; i < bytes.length; i++) {
-                long expiryTime = Long.MAX_VALUE;
-                if (bytes[i] == (byte) 0xfc && i + 8 < bytes.length) {
-                    byte[] expBytes = Arrays.copyOfRange(bytes, i + 1, i + 9);
-                    ByteBuffer buffer = ByteBuffer.wrap(expBytes).order(ByteOrder.LITTLE_ENDIAN);
-                    expiryTime = buffer.getLong();
-                    i += 9;
-                }
-
-                if (bytes[i] == (byte) 0x00 && i + 1 < bytes.length) {
-                    int keyLen = bytes[i + 1] & 0xFF;
-                    if (keyLen <= 0) continue;
-                    String key = new String(Arrays.copyOfRange(bytes, i + 2, i + 2 + keyLen));
-                    i += 2 + keyLen;
-                    if (i >= bytes.length) break;
-                    int valueLen = bytes[i] & 0xFF;
-                    if (valueLen <= 0) continue;
-                    String value = new String(Arrays.copyOfRange(bytes, i + 1, i + 1 + valueLen));
-                    i += valueLen;
-                    kvStore.set(key, value, expiryTime);
-                }
-            }
+            new RDBLoader(kvStore, listStore, streamStore, Runtime.getRuntime().availableProcessors()).load(path);
         } catch (IOException e) {
             System.out.println("RDB file error: " + e.getMessage());
         }
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class NioConnection {
+    // Threads other than the event loop (replica writers, blocking commands) wait in flush() while more
+    // than this is queued, so a slow peer pushes back on them instead of growing the queue without bound.
+    private static final long WRITE_HIGH_WATER_MARK = 1 << 20;
+    private static final long DRAIN_RECHECK_MILLIS = 100;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ClientHandler handler;
+    private final ExecutorService blockingExecutor;
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final ReentrantLock writabilityLock = new ReentrantLock();
+    private final Condition drained = writabilityLock.newCondition();
+    private final OutputStream output = new ChannelOutputStream();
+    private final RESPParser parser = new RESPParser();
+    // Unparsed input past which the client is dropped. A parked client keeps being read, so a peer
+    // pipelining behind a blocked command would otherwise grow the buffer without bound.
+    private final long queryBufferLimit;
+    private SelectionKey key;
+    private boolean suspended = false;
+    // Set while replies are held for appendfsync always; no command is processed until they are sent.
+    private boolean awaitingDisk = false;
+
+    public NioConnection(SocketChannel channel, EventLoop loop, ClientHandler handler, ExecutorService blockingExecutor,
+                         long queryBufferLimit) {
+        this.channel = channel;
+        this.loop = loop;
+        this.handler = handler;
+        this.blockingExecutor = blockingExecutor;
+        this.queryBufferLimit = queryBufferLimit;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void onReadable() {
+        try {
+            int read = channel.read(parser.buffer());
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (parser.buffered() >= queryBufferLimit) {
+                System.out.println("Closing client that reached the query buffer limit: " + channel.getRemoteAddress());
+                close();
+                return;
+            }
+            processBuffer();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Client error: " + e.getMessage() + ", socket closed: " + !channel.isOpen());
+            close();
+        }
+    }
+
+    private void processBuffer() throws IOException {
+        Command command;
+        while (!suspended && !awaitingDisk && (command = parser.next()) != null) {
+            if (command.isEmpty()) continue;
+            if (ClientHandler.isBlocking(command)) {
+                runBlocking(command.detach());
+                break;
+            }
+            handler.process(command, output);
+            CompletableFuture<?> blocked = handler.blockedUntil();
+            if (blocked != null) {
+                park(blocked);
+                break;
+            }
+        }
+        flushWhenDurable();
+    }
+
+    // Sends the buffered replies, or, while the writes behind them are not on disk yet, holds them and
+    // lets the AOF writer's completion send them from this loop, so no fsync stalls the other connections.
+    private void flushWhenDurable() throws IOException {
+        if (awaitingDisk) return;
+        CompletableFuture<Void> durable = handler.durable();
+        if (durable == null) {
+            handler.flush(output);
+            return;
+        }
+        awaitingDisk = true;
+        durable.whenComplete((result, error) -> loop.execute(() -> {
+            awaitingDisk = false;
+            if (!key.isValid()) return;
+            try {
+                // A blocked command served meanwhile may have added a write of its own to wait for.
+                flushWhenDurable();
+                if (!suspended) processBuffer();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Client error: " + e.getMessage());
+                close();
+            }
+        }));
+    }
+
+    // A blocked list pop holds no thread: commands wait in the buffer until its result is in, then the
+    // reply is written and the rest processed on this connection's loop. Reading goes on, so a client
+    // that disconnects while blocked is noticed and its wait cancelled before it can take an element;
+    // the query buffer limit bounds what piles up meanwhile.
+    private void park(CompletableFuture<?> blocked) {
+        suspended = true;
+        blocked.whenComplete((result, error) -> loop.execute(() -> {
+            if (!key.isValid()) return;
+            handler.unblock();
+            resume();
+        }));
+    }
+
+    private void runBlocking(Command command) {
+        suspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        blockingExecutor.execute(() -> {
+            try {
+                handler.process(command, output);
+                handler.flush(output);
+            } catch (IOException e) {
+                System.out.println("Client error: " + e.getMessage());
+            }
+            loop.execute(this::resume);
+        });
+    }
+
+    private void resume() {
+        if (!key.isValid()) return;
+        suspended = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            processBuffer();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Client error: " + e.getMessage());
+            close();
+        }
+    }
+
+    void onWritable() {
+        try {
+            ByteBuffer buffer;
+            long written = 0;
+            try {
+                while ((buffer = pendingWrites.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    written += buffer.capacity();
+                    pendingWrites.poll();
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+            } finally {
+                released(written);
+            }
+        } catch (IOException e) {
+            System.out.println("Write error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void released(long bytes) {
+        if (bytes == 0) return;
+        long before = pendingBytes.getAndAdd(-bytes);
+        if (before > WRITE_HIGH_WATER_MARK && before - bytes <= WRITE_HIGH_WATER_MARK) signalDrained();
+    }
+
+    private void signalDrained() {
+        writabilityLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    private void awaitDrained() {
+        writabilityLock.lock();
+        try {
+            // Timed, because the channel can also be closed from another thread without passing close().
+            while (pendingBytes.get() > WRITE_HIGH_WATER_MARK && channel.isOpen()) {
+                drained.await(DRAIN_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writabilityLock.unlock();
+        }
+    }
+
+    void close() {
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        signalDrained();
+        handler.close();
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pendingWrites.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            pendingBytes.addAndGet(len);
+        }
+
+        @Override
+        public void flush() {
+            if (loop.inEventLoop()) {
+                if (key != null && key.isValid()) onWritable();
+            } else {
+                loop.execute(() -> {
+                    if (key.isValid()) onWritable();
+                });
+                awaitDrained();
+            }
+        }
+    }
+}
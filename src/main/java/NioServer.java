@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class NioServer {
+    private final int port;
+    private final long queryBufferLimit;
+    private final EventLoop[] loops;
+    private final Function<Socket, ClientHandler> handlerFactory;
+    private final ExecutorService blockingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioServer(int port, int ioThreads, long queryBufferLimit, Function<Socket, ClientHandler> handlerFactory)
+            throws IOException {
+        this.port = port;
+        this.queryBufferLimit = queryBufferLimit;
+        this.handlerFactory = handlerFactory;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this, "event-loop-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 1; i < loops.length; i++) {
+            new Thread(loops[i], loops[i].getName()).start();
+        }
+        loops[0].execute(() -> loops[0].registerAcceptor(serverChannel));
+        System.out.println("Listening on port " + port + " with " + loops.length + " event loop(s)");
+        loops[0].run();
+    }
+
+    void accept(SelectionKey key) throws IOException {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            System.out.println("New client connected");
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.registerConnection(new NioConnection(accepted, loop,
+                    handlerFactory.apply(accepted.socket()), blockingExecutor, queryBufferLimit)));
+        }
+    }
+}
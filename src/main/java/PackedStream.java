@@ -0,0 +1,359 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// The stream encoding of StreamStore, after Redis' radix tree of listpacks: entries are packed into
+// nodes of up to NODE_ENTRIES entries or about NODE_BYTES bytes, and a TreeMap indexes the nodes by
+// their first ID. An entry is stored as a flags byte, its ID as the millisecond delta from the node's
+// first ID plus its sequence, and its fields. The first entry's field names are kept once per node, and
+// later entries with the same names store only their values. Locating an ID is a tree lookup plus a
+// scan of one bounded node, so a range of k entries costs O(log n + k). XDEL and exact trims only flag
+// entries deleted in place; a node's memory is reclaimed when its last live entry goes, and approximate
+// trims drop whole nodes from the head without touching their entries. Not thread-safe; StreamStore
+// guards each stream with its key lock.
+public class PackedStream {
+    // Like stream-node-max-entries and stream-node-max-bytes.
+    private static final int NODE_ENTRIES = 100;
+    private static final int NODE_BYTES = 4096;
+    private static final int INITIAL_NODE_BYTES = 64;
+    private static final int FLAG_SAME_FIELDS = 1;
+    private static final int FLAG_DELETED = 2;
+    // Like Redis, an approximate trim without LIMIT removes at most 100 nodes' worth of entries.
+    private static final long DEFAULT_TRIM_LIMIT = 100L * NODE_ENTRIES;
+
+    private final TreeMap<StreamId, Node> nodes = new TreeMap<>();
+    private long length = 0;
+    // The newest ID ever added; new entries must be above it.
+    private StreamId lastId = StreamId.MIN;
+
+    private static final class Node {
+        final StreamId first;
+        // Field names of the first entry in order, shared by every entry flagged FLAG_SAME_FIELDS.
+        final String[] fields;
+        byte[] data = new byte[INITIAL_NODE_BYTES];
+        int used = 0;
+        int count = 0;
+        // Entries not flagged deleted; the node is dropped when this reaches 0.
+        int live = 0;
+
+        Node(StreamId first, String[] fields) {
+            this.first = first;
+            this.fields = fields;
+        }
+
+        boolean isFull() {
+            return count >= NODE_ENTRIES || used >= NODE_BYTES;
+        }
+
+        void reserve(int bytes) {
+            if (data.length - used >= bytes) return;
+            data = Arrays.copyOf(data, Math.max(data.length * 2, used + bytes));
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public StreamId lastId() {
+        return lastId;
+    }
+
+    // For loaded streams, whose last ID may be past their last entry; never lowers it below an entry.
+    public void setLastId(StreamId id) {
+        lastId = id;
+    }
+
+    // Appends an entry of alternating field names and values; id must be greater than lastId().
+    public void append(StreamId id, List<String> fields) {
+        int pairs = fields.size() / 2;
+        Map.Entry<StreamId, Node> tail = nodes.lastEntry();
+        Node node = tail == null ? null : tail.getValue();
+        if (node == null || node.isFull()) {
+            String[] names = new String[pairs];
+            for (int i = 0; i < pairs; i++) {
+                names[i] = fields.get(i * 2);
+            }
+            node = new Node(id, names);
+            nodes.put(id, node);
+        }
+        boolean sameFields = sameFields(node.fields, fields);
+        byte[][] strings = new byte[sameFields ? pairs : pairs * 2][];
+        int size = 1 + varintSize(id.ms - node.first.ms) + varintSize(id.seq);
+        if (!sameFields) size += varintSize(pairs);
+        int i = 0;
+        for (int f = 0; f < pairs * 2; f += 2) {
+            if (!sameFields) strings[i++] = fields.get(f).getBytes(StandardCharsets.UTF_8);
+            strings[i++] = fields.get(f + 1).getBytes(StandardCharsets.UTF_8);
+        }
+        for (byte[] string : strings) {
+            size += varintSize(string.length) + string.length;
+        }
+        node.reserve(size);
+        int pos = node.used;
+        node.data[pos++] = (byte) (sameFields ? FLAG_SAME_FIELDS : 0);
+        pos = writeVarint(node.data, pos, id.ms - node.first.ms);
+        pos = writeVarint(node.data, pos, id.seq);
+        if (!sameFields) pos = writeVarint(node.data, pos, pairs);
+        for (byte[] string : strings) {
+            pos = writeVarint(node.data, pos, string.length);
+            System.arraycopy(string, 0, node.data, pos, string.length);
+            pos += string.length;
+        }
+        node.used = pos;
+        node.count++;
+        node.live++;
+        length++;
+        lastId = id;
+    }
+
+    // Only the same names in the same order share the node's names, so an entry reads back as added.
+    private static boolean sameFields(String[] names, List<String> fields) {
+        if (names.length * 2 != fields.size()) return false;
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].equals(fields.get(i * 2))) return false;
+        }
+        return true;
+    }
+
+    // Entries from start to end inclusive, oldest first, at most count of them (all when count is 0).
+    public List<StreamStore.StreamEntry> range(StreamId start, StreamId end, int count) {
+        List<StreamStore.StreamEntry> result = new ArrayList<>();
+        if (start.compareTo(end) > 0) return result;
+        // The node holding start begins at or before it; later nodes begin inside the range.
+        StreamId from = nodes.floorKey(start);
+        for (Node node : nodes.tailMap(from != null ? from : start, true).values()) {
+            if (node.first.compareTo(end) > 0) break;
+            Reader reader = new Reader(node);
+            for (int i = 0; i < node.count; i++) {
+                int flags = reader.data[reader.pos++];
+                reader.readId();
+                if (reader.compareTo(end) > 0) return result;
+                if (reader.compareTo(start) < 0 || (flags & FLAG_DELETED) != 0) {
+                    reader.skipFields(flags);
+                    continue;
+                }
+                result.add(new StreamStore.StreamEntry(reader.id(), reader.fields(flags)));
+                if (count > 0 && result.size() >= count) return result;
+            }
+        }
+        return result;
+    }
+
+    // Entries from end down to start inclusive, newest first, at most count of them (all when count is 0).
+    public List<StreamStore.StreamEntry> reverseRange(StreamId end, StreamId start, int count) {
+        List<StreamStore.StreamEntry> result = new ArrayList<>();
+        if (start.compareTo(end) > 0) return result;
+        for (Node node : nodes.headMap(end, true).descendingMap().values()) {
+            // Entries only chain forwards; note where each one starts, then visit them backwards.
+            int[] offsets = new int[node.count];
+            Reader reader = new Reader(node);
+            for (int i = 0; i < node.count; i++) {
+                offsets[i] = reader.pos;
+                int flags = reader.data[reader.pos++];
+                reader.readId();
+                reader.skipFields(flags);
+            }
+            for (int i = node.count - 1; i >= 0; i--) {
+                reader.pos = offsets[i];
+                int flags = reader.data[reader.pos++];
+                reader.readId();
+                if ((flags & FLAG_DELETED) != 0 || reader.compareTo(end) > 0) continue;
+                if (reader.compareTo(start) < 0) return result;
+                result.add(new StreamStore.StreamEntry(reader.id(), reader.fields(flags)));
+                if (count > 0 && result.size() >= count) return result;
+            }
+        }
+        return result;
+    }
+
+    // The entry with this ID, or null when there is none.
+    public StreamStore.StreamEntry get(StreamId id) {
+        List<StreamStore.StreamEntry> found = range(id, id, 1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    // The oldest entry's ID, or null when the stream is empty.
+    public StreamId firstId() {
+        List<StreamStore.StreamEntry> first = range(StreamId.MIN, StreamId.MAX, 1);
+        return first.isEmpty() ? null : first.get(0).id;
+    }
+
+    // XDEL: flags the entry deleted. Returns false when there is no such entry.
+    public boolean delete(StreamId id) {
+        Map.Entry<StreamId, Node> holder = nodes.floorEntry(id);
+        if (holder == null) return false;
+        Node node = holder.getValue();
+        Reader reader = new Reader(node);
+        for (int i = 0; i < node.count; i++) {
+            int at = reader.pos;
+            int flags = reader.data[reader.pos++];
+            reader.readId();
+            int order = reader.compareTo(id);
+            if (order > 0) return false;
+            if (order == 0 && (flags & FLAG_DELETED) == 0) {
+                markDeleted(node, at);
+                return true;
+            }
+            reader.skipFields(flags);
+        }
+        return false;
+    }
+
+    // MAXLEN: trims the oldest entries until at most maxLength are left. An approximate trim stops at the
+    // last whole node it can drop, and after limit entries (0 for no limit, negative for the default).
+    // Returns how many entries were removed.
+    public long trimToLength(long maxLength, boolean approximate, long limit) {
+        if (limit < 0) limit = DEFAULT_TRIM_LIMIT;
+        long removed = 0;
+        while (!nodes.isEmpty() && length - nodes.firstEntry().getValue().live >= maxLength) {
+            if (approximate && limit > 0 && removed + nodes.firstEntry().getValue().live > limit) return removed;
+            removed += dropHead();
+        }
+        // What is left to remove lies in the head node.
+        if (!approximate && length > maxLength) removed += trimHead(length - maxLength, null);
+        return removed;
+    }
+
+    // MINID: trims the entries below minId, with the same approximate mode and limit as trimToLength.
+    public long trimBefore(StreamId minId, boolean approximate, long limit) {
+        if (limit < 0) limit = DEFAULT_TRIM_LIMIT;
+        long removed = 0;
+        while (!nodes.isEmpty()) {
+            // Every entry of a node is below the first ID of the next one.
+            StreamId next = nodes.higherKey(nodes.firstKey());
+            if (next == null || next.compareTo(minId) > 0) break;
+            if (approximate && limit > 0 && removed + nodes.firstEntry().getValue().live > limit) return removed;
+            removed += dropHead();
+        }
+        if (!approximate && !nodes.isEmpty()) removed += trimHead(Long.MAX_VALUE, minId);
+        return removed;
+    }
+
+    private long dropHead() {
+        Node head = nodes.pollFirstEntry().getValue();
+        length -= head.live;
+        return head.live;
+    }
+
+    // Flags up to max live entries of the head node deleted, oldest first, stopping at the first ID not
+    // below bound when there is one.
+    private long trimHead(long max, StreamId bound) {
+        Node node = nodes.firstEntry().getValue();
+        Reader reader = new Reader(node);
+        long removed = 0;
+        for (int i = 0; i < node.count && removed < max; i++) {
+            int at = reader.pos;
+            int flags = reader.data[reader.pos++];
+            reader.readId();
+            if (bound != null && reader.compareTo(bound) >= 0) break;
+            reader.skipFields(flags);
+            if ((flags & FLAG_DELETED) != 0) continue;
+            markDeleted(node, at);
+            removed++;
+        }
+        return removed;
+    }
+
+    private void markDeleted(Node node, int at) {
+        node.data[at] |= FLAG_DELETED;
+        node.live--;
+        length--;
+        if (node.live == 0) nodes.remove(node.first);
+    }
+
+    public List<StreamStore.StreamEntry> toList() {
+        return range(StreamId.MIN, StreamId.MAX, 0);
+    }
+
+    private static final class Reader {
+        final Node node;
+        final byte[] data;
+        int pos = 0;
+        // The ID of the entry being read, kept unboxed so skipped entries allocate nothing.
+        long ms;
+        long seq;
+
+        Reader(Node node) {
+            this.node = node;
+            this.data = node.data;
+        }
+
+        void readId() {
+            ms = node.first.ms + varint();
+            seq = varint();
+        }
+
+        int compareTo(StreamId id) {
+            int byMs = Long.compare(ms, id.ms);
+            return byMs != 0 ? byMs : Long.compare(seq, id.seq);
+        }
+
+        StreamId id() {
+            return new StreamId(ms, seq);
+        }
+
+        List<String> fields(int flags) {
+            if ((flags & FLAG_SAME_FIELDS) != 0) {
+                List<String> fields = new ArrayList<>(node.fields.length * 2);
+                for (String name : node.fields) {
+                    fields.add(name);
+                    fields.add(string());
+                }
+                return fields;
+            }
+            int count = (int) varint();
+            List<String> fields = new ArrayList<>(count * 2);
+            for (int i = 0; i < count * 2; i++) {
+                fields.add(string());
+            }
+            return fields;
+        }
+
+        void skipFields(int flags) {
+            long strings = (flags & FLAG_SAME_FIELDS) != 0 ? node.fields.length : varint() * 2;
+            for (long i = 0; i < strings; i++) {
+                int length = (int) varint();
+                pos += length;
+            }
+        }
+
+        String string() {
+            int length = (int) varint();
+            String value = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        long varint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static int varintSize(long value) {
+        int bytes = 1;
+        while ((value >>>= 7) != 0) bytes++;
+        return bytes;
+    }
+
+    // Low seven bits first, high bit set while more follow.
+    private static int writeVarint(byte[] data, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            data[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,245 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// The list encoding of ListStore, after Redis' quicklist: a doubly linked list of nodes, each packing
+// its elements into one byte array. An element is stored as its length, its UTF-8 bytes and its length
+// again, the second copy written backwards, so a node can be walked from either end. Pushes and pops at
+// both ends are O(1) amortized, and an index lookup skips whole nodes by their counts, scanning at most
+// one node of NODE_BYTES. Each element costs its bytes plus two to six, instead of a String object and
+// a reference. Not thread-safe; ListStore guards each list with its key lock.
+public class QuickList {
+    // Nodes stop taking elements beyond this, like list-max-listpack-size -2; one larger element gets
+    // a node of its own.
+    private static final int NODE_BYTES = 8 * 1024;
+    private static final int INITIAL_NODE_BYTES = 64;
+
+    private Node first;
+    private Node last;
+    private int size = 0;
+
+    private static final class Node {
+        Node prev;
+        Node next;
+        byte[] data;
+        // Live region of data; room outside it lets both ends grow without moving the elements.
+        int head;
+        int tail;
+        int count = 0;
+
+        Node(int capacity, boolean fillFromEnd) {
+            data = new byte[capacity];
+            head = tail = fillFromEnd ? capacity : 0;
+        }
+
+        int used() {
+            return tail - head;
+        }
+
+        // Makes room for another entry at the given end, growing the array up to NODE_BYTES and splitting
+        // whatever is spare between both ends, so pushes alternating between them do not keep moving it.
+        void reserve(int bytes, boolean atHead) {
+            int room = atHead ? head : data.length - tail;
+            if (room >= bytes) return;
+            int capacity = Math.max(Math.min(data.length * 2, NODE_BYTES), used() + bytes);
+            byte[] grown = new byte[capacity];
+            int spare = capacity - used() - bytes;
+            int start = atHead ? bytes + spare / 2 : spare / 2;
+            System.arraycopy(data, head, grown, start, used());
+            data = grown;
+            tail = start + used();
+            head = start;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void pushHead(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int entry = entrySize(bytes.length);
+        Node node = first;
+        if (node == null || node.used() + entry > NODE_BYTES) {
+            node = new Node(Math.max(INITIAL_NODE_BYTES, entry), true);
+            node.next = first;
+            if (first != null) {
+                first.prev = node;
+            } else {
+                last = node;
+            }
+            first = node;
+        }
+        node.reserve(entry, true);
+        node.head -= entry;
+        writeEntry(node.data, node.head, bytes);
+        node.count++;
+        size++;
+    }
+
+    public void pushTail(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int entry = entrySize(bytes.length);
+        Node node = last;
+        if (node == null || node.used() + entry > NODE_BYTES) {
+            node = new Node(Math.max(INITIAL_NODE_BYTES, entry), false);
+            node.prev = last;
+            if (last != null) {
+                last.next = node;
+            } else {
+                first = node;
+            }
+            last = node;
+        }
+        node.reserve(entry, false);
+        writeEntry(node.data, node.tail, bytes);
+        node.tail += entry;
+        node.count++;
+        size++;
+    }
+
+    // Returns null when the list is empty.
+    public String popHead() {
+        Node node = first;
+        if (node == null) return null;
+        int length = readLength(node.data, node.head);
+        int start = node.head + varintSize(length);
+        String value = new String(node.data, start, length, StandardCharsets.UTF_8);
+        node.head += entrySize(length);
+        removed(node);
+        return value;
+    }
+
+    public String popTail() {
+        Node node = last;
+        if (node == null) return null;
+        int length = readBackLength(node.data, node.tail);
+        int end = node.tail - varintSize(length);
+        String value = new String(node.data, end - length, length, StandardCharsets.UTF_8);
+        node.tail -= entrySize(length);
+        removed(node);
+        return value;
+    }
+
+    private void removed(Node node) {
+        node.count--;
+        size--;
+        if (node.count > 0) return;
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            first = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            last = node.prev;
+        }
+    }
+
+    // Index from the head, 0 <= index < size.
+    public String get(int index) {
+        List<String> one = range(index, index);
+        return one.isEmpty() ? null : one.get(0);
+    }
+
+    // Elements start..stop inclusive, both already clamped to 0 <= start <= stop < size. Nodes before
+    // start are skipped by count, from whichever end is closer.
+    public List<String> range(int start, int stop) {
+        List<String> result = new ArrayList<>(stop - start + 1);
+        Node node;
+        int nodeStart;
+        if (start < size / 2) {
+            node = first;
+            nodeStart = 0;
+            while (nodeStart + node.count <= start) {
+                nodeStart += node.count;
+                node = node.next;
+            }
+        } else {
+            node = last;
+            nodeStart = size - node.count;
+            while (nodeStart > start) {
+                node = node.prev;
+                nodeStart -= node.count;
+            }
+        }
+        int index = nodeStart;
+        int pos = node.head;
+        while (index <= stop) {
+            if (pos == node.tail) {
+                node = node.next;
+                pos = node.head;
+            }
+            int length = readLength(node.data, pos);
+            if (index >= start) {
+                result.add(new String(node.data, pos + varintSize(length), length, StandardCharsets.UTF_8));
+            }
+            pos += entrySize(length);
+            index++;
+        }
+        return result;
+    }
+
+    public List<String> toList() {
+        return size == 0 ? new ArrayList<>() : range(0, size - 1);
+    }
+
+    private static int entrySize(int length) {
+        return 2 * varintSize(length) + length;
+    }
+
+    private static int varintSize(int value) {
+        int bytes = 1;
+        while ((value >>>= 7) != 0) bytes++;
+        return bytes;
+    }
+
+    private static void writeEntry(byte[] data, int pos, byte[] value) {
+        int lengthBytes = varintSize(value.length);
+        // Forward: low seven bits first, high bit set while more follow.
+        int remaining = value.length;
+        for (int i = 0; i < lengthBytes; i++) {
+            data[pos + i] = (byte) ((remaining & 0x7F) | (i < lengthBytes - 1 ? 0x80 : 0));
+            remaining >>>= 7;
+        }
+        pos += lengthBytes;
+        System.arraycopy(value, 0, data, pos, value.length);
+        pos += value.length;
+        // Backward: the same groups mirrored, so a reader starting at the end meets the low bits first.
+        remaining = value.length;
+        for (int i = 0; i < lengthBytes; i++) {
+            data[pos + lengthBytes - 1 - i] = (byte) ((remaining & 0x7F) | (i < lengthBytes - 1 ? 0x80 : 0));
+            remaining >>>= 7;
+        }
+    }
+
+    private static int readLength(byte[] data, int pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // Reads the length stored just before end.
+    private static int readBackLength(byte[] data, int end) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[--end];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,675 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Streams an RDB file through a fixed read buffer and hands decoded keys to insertion workers in
+// batches, so the dump is never held in memory as a whole.
+public class RDBLoader {
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int BATCH_SIZE = 1024;
+    private static final List<Entry> END_OF_FILE = new ArrayList<>();
+
+    static final int OPCODE_FUNCTION = 0xF5;
+    static final int OPCODE_MODULE_AUX = 0xF7;
+    static final int OPCODE_IDLE = 0xF8;
+    static final int OPCODE_FREQ = 0xF9;
+    static final int OPCODE_AUX = 0xFA;
+    static final int OPCODE_RESIZEDB = 0xFB;
+    static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    static final int OPCODE_EXPIRETIME = 0xFD;
+    static final int OPCODE_SELECTDB = 0xFE;
+    static final int OPCODE_EOF = 0xFF;
+
+    static final int TYPE_STRING = 0;
+    static final int TYPE_LIST = 1;
+    static final int TYPE_SET = 2;
+    static final int TYPE_ZSET = 3;
+    static final int TYPE_HASH = 4;
+    static final int TYPE_ZSET_2 = 5;
+    static final int TYPE_HASH_ZIPMAP = 9;
+    static final int TYPE_LIST_ZIPLIST = 10;
+    static final int TYPE_SET_INTSET = 11;
+    static final int TYPE_ZSET_ZIPLIST = 12;
+    static final int TYPE_HASH_ZIPLIST = 13;
+    static final int TYPE_LIST_QUICKLIST = 14;
+    static final int TYPE_STREAM_LISTPACKS = 15;
+    static final int TYPE_HASH_LISTPACK = 16;
+    static final int TYPE_ZSET_LISTPACK = 17;
+    static final int TYPE_LIST_QUICKLIST_2 = 18;
+    static final int TYPE_STREAM_LISTPACKS_2 = 19;
+    static final int TYPE_SET_LISTPACK = 20;
+    static final int TYPE_STREAM_LISTPACKS_3 = 21;
+
+    private static final int ENCODING_INT8 = 0;
+    private static final int ENCODING_INT16 = 1;
+    private static final int ENCODING_INT32 = 2;
+    private static final int ENCODING_LZF = 3;
+
+    private static final int QUICKLIST_NODE_PLAIN = 1;
+    static final int STREAM_ITEM_FLAG_DELETED = 1;
+    static final int STREAM_ITEM_FLAG_SAMEFIELDS = 2;
+
+    private final KeyValueStore kvStore;
+    private final ListStore listStore;
+    private final StreamStore streamStore;
+    private final int workers;
+
+    private ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private int loaded;
+    private int skipped;
+    private volatile RuntimeException insertFailure;
+
+    private static class Entry {
+        final int type;
+        final ByteString key;
+        final Object value;
+        final long expiryTime;
+
+        Entry(int type, ByteString key, Object value, long expiryTime) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private static class StreamRecord {
+        final StreamId id;
+        // Names and values alternating, as StreamStore takes them.
+        final List<String> fields;
+
+        StreamRecord(StreamId id, List<String> fields) {
+            this.id = id;
+            this.fields = fields;
+        }
+    }
+
+    private static class StreamValue {
+        final List<StreamRecord> records = new ArrayList<>();
+        StreamId lastId;
+        final List<ConsumerGroup> groups = new ArrayList<>();
+    }
+
+    public RDBLoader(KeyValueStore kvStore, ListStore listStore, StreamStore streamStore, int workers) {
+        this.kvStore = kvStore;
+        this.listStore = listStore;
+        this.streamStore = streamStore;
+        this.workers = Math.max(1, workers);
+    }
+
+    public void load(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            load(file, path.toString());
+        }
+    }
+
+    // Decodes one dump from the channel, stopping at its EOF opcode; the checksum after it is left unread.
+    public void load(ReadableByteChannel source, String name) throws IOException {
+        // The queue is bounded so a fast reader cannot run ahead of the workers and buffer the dump.
+        BlockingQueue<List<Entry>> batches = new ArrayBlockingQueue<>(workers * 2);
+        Thread.Builder threads = Thread.ofPlatform().name("rdb-load-", 0);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, threads::unstarted);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            results.add(pool.submit(() -> {
+                insertBatches(batches);
+                return null;
+            }));
+        }
+        try {
+            channel = source;
+            buffer.clear().flip();
+            decode(batches);
+        } catch (RuntimeException e) {
+            // Malformed embedded ziplists, listpacks and stream metadata surface as runtime exceptions.
+            throw new IOException("Corrupt RDB file: " + e, e);
+        } finally {
+            for (int i = 0; i < workers; i++) {
+                putUninterruptibly(batches, END_OF_FILE);
+            }
+            pool.shutdown();
+        }
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading RDB file");
+            } catch (ExecutionException e) {
+                throw new IOException("RDB insertion failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        if (insertFailure != null) {
+            throw new IOException("RDB insertion failed: " + insertFailure.getMessage(), insertFailure);
+        }
+        System.out.println("Loaded " + loaded + " keys from " + name + (skipped > 0 ? ", skipped " + skipped : ""));
+    }
+
+    private void decode(BlockingQueue<List<Entry>> batches) throws IOException {
+        byte[] magic = readBytes(9);
+        if (!new String(magic, 0, 5, StandardCharsets.US_ASCII).equals("REDIS")) {
+            throw new IOException("Not an RDB file");
+        }
+
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        long database = 0;
+        long expiryTime = Long.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        while (true) {
+            int type = readUnsignedByte();
+            switch (type) {
+                case OPCODE_EOF:
+                    putUninterruptibly(batches, batch);
+                    return;
+                case OPCODE_SELECTDB:
+                    database = readLength();
+                    continue;
+                case OPCODE_RESIZEDB:
+                    readLength();
+                    readLength();
+                    continue;
+                case OPCODE_AUX:
+                    readString();
+                    readString();
+                    continue;
+                case OPCODE_EXPIRETIME_MS:
+                    expiryTime = readLong();
+                    continue;
+                case OPCODE_EXPIRETIME:
+                    expiryTime = (readInt() & 0xFFFFFFFFL) * 1000;
+                    continue;
+                case OPCODE_IDLE:
+                    readLength();
+                    continue;
+                case OPCODE_FREQ:
+                    readUnsignedByte();
+                    continue;
+                case OPCODE_FUNCTION:
+                case OPCODE_MODULE_AUX:
+                    throw new IOException("Unsupported RDB opcode 0x" + Integer.toHexString(type));
+            }
+
+            byte[] key = readString();
+            Object value = readValue(type);
+            // Only db0 is served, and keys that expired while the dump sat on disk are dropped like Redis does.
+            // Lists and streams cannot carry a TTL here, so volatile ones are skipped rather than made persistent.
+            if (value == null || database != 0 || expiryTime <= now
+                    || (type != TYPE_STRING && expiryTime != Long.MAX_VALUE)) {
+                skipped++;
+            } else {
+                batch.add(new Entry(type, new ByteString(key), value, expiryTime));
+                loaded++;
+                if (batch.size() == BATCH_SIZE) {
+                    putUninterruptibly(batches, batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            expiryTime = Long.MAX_VALUE;
+        }
+    }
+
+    // Returns the decoded value for types the server stores, or null after consuming a type it has no store for.
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case TYPE_STRING:
+                return readString();
+            case TYPE_LIST: {
+                long size = readLength();
+                List<String> values = new ArrayList<>();
+                for (long i = 0; i < size; i++) {
+                    values.add(utf8(readString()));
+                }
+                return values;
+            }
+            case TYPE_LIST_ZIPLIST:
+                return readZiplist(readString());
+            case TYPE_LIST_QUICKLIST: {
+                long nodes = readLength();
+                List<String> values = new ArrayList<>();
+                for (long i = 0; i < nodes; i++) {
+                    values.addAll(readZiplist(readString()));
+                }
+                return values;
+            }
+            case TYPE_LIST_QUICKLIST_2: {
+                long nodes = readLength();
+                List<String> values = new ArrayList<>();
+                for (long i = 0; i < nodes; i++) {
+                    long container = readLength();
+                    byte[] node = readString();
+                    if (container == QUICKLIST_NODE_PLAIN) {
+                        values.add(utf8(node));
+                    } else {
+                        values.addAll(readListpack(node));
+                    }
+                }
+                return values;
+            }
+            case TYPE_STREAM_LISTPACKS:
+            case TYPE_STREAM_LISTPACKS_2:
+            case TYPE_STREAM_LISTPACKS_3:
+                return readStream(type);
+            case TYPE_SET:
+                skipStrings(readLength());
+                return null;
+            case TYPE_HASH:
+                skipStrings(readLength() * 2);
+                return null;
+            case TYPE_ZSET: {
+                long size = readLength();
+                for (long i = 0; i < size; i++) {
+                    readString();
+                    // Scores are length-prefixed strings; 253-255 stand for nan, +inf and -inf with no payload.
+                    int scoreLength = readUnsignedByte();
+                    if (scoreLength < 253) skipBytes(scoreLength);
+                }
+                return null;
+            }
+            case TYPE_ZSET_2: {
+                long size = readLength();
+                for (long i = 0; i < size; i++) {
+                    readString();
+                    skipBytes(8);
+                }
+                return null;
+            }
+            case TYPE_HASH_ZIPMAP:
+            case TYPE_SET_INTSET:
+            case TYPE_ZSET_ZIPLIST:
+            case TYPE_HASH_ZIPLIST:
+            case TYPE_HASH_LISTPACK:
+            case TYPE_ZSET_LISTPACK:
+            case TYPE_SET_LISTPACK:
+                readString();
+                return null;
+            default:
+                throw new IOException("Unsupported RDB value type " + type);
+        }
+    }
+
+    private StreamValue readStream(int type) throws IOException {
+        StreamValue stream = new StreamValue();
+        List<StreamRecord> records = stream.records;
+        long nodes = readLength();
+        for (long n = 0; n < nodes; n++) {
+            ByteBuffer master = ByteBuffer.wrap(readString());
+            long masterMs = master.getLong();
+            long masterSeq = master.getLong();
+            Iterator<String> items = readListpack(readString()).iterator();
+
+            long count = Long.parseLong(items.next());
+            long deleted = Long.parseLong(items.next());
+            int masterFieldCount = Integer.parseInt(items.next());
+            List<String> masterFields = new ArrayList<>(masterFieldCount);
+            for (int i = 0; i < masterFieldCount; i++) {
+                masterFields.add(items.next());
+            }
+            items.next(); // master entry terminator
+
+            for (long e = 0; e < count + deleted; e++) {
+                int flags = Integer.parseInt(items.next());
+                long ms = masterMs + Long.parseLong(items.next());
+                long seq = masterSeq + Long.parseLong(items.next());
+                List<String> fields = new ArrayList<>();
+                if ((flags & STREAM_ITEM_FLAG_SAMEFIELDS) != 0) {
+                    for (String field : masterFields) {
+                        fields.add(field);
+                        fields.add(items.next());
+                    }
+                } else {
+                    int fieldCount = Integer.parseInt(items.next());
+                    for (int i = 0; i < fieldCount * 2; i++) {
+                        fields.add(items.next());
+                    }
+                }
+                items.next(); // entry element count, used for reverse iteration
+                if ((flags & STREAM_ITEM_FLAG_DELETED) == 0) {
+                    records.add(new StreamRecord(new StreamId(ms, seq), fields));
+                }
+            }
+        }
+
+        readLength(); // length
+        stream.lastId = new StreamId(readLength(), readLength());
+        if (type != TYPE_STREAM_LISTPACKS) {
+            readLength(); // first id ms
+            readLength(); // first id seq
+            readLength(); // max deleted id ms
+            readLength(); // max deleted id seq
+            readLength(); // entries added
+        }
+        long groups = readLength();
+        for (long g = 0; g < groups; g++) {
+            ConsumerGroup group = new ConsumerGroup(utf8(readString()), new StreamId(readLength(), readLength()));
+            if (type != TYPE_STREAM_LISTPACKS) {
+                readLength(); // entries read
+            }
+            // The group's PEL comes first; each consumer then lists the IDs it owns.
+            Map<StreamId, ConsumerGroup.PendingEntry> unowned = new HashMap<>();
+            long pending = readLength();
+            for (long p = 0; p < pending; p++) {
+                StreamId id = readRawId();
+                long deliveryTime = readLong();
+                unowned.put(id, new ConsumerGroup.PendingEntry(id, null, deliveryTime, readLength()));
+            }
+            long consumers = readLength();
+            for (long c = 0; c < consumers; c++) {
+                String name = utf8(readString());
+                ConsumerGroup.Consumer consumer = group.createConsumer(name, readLong());
+                if (type == TYPE_STREAM_LISTPACKS_3) {
+                    readLong(); // active time
+                }
+                long owned = readLength();
+                for (long p = 0; p < owned; p++) {
+                    ConsumerGroup.PendingEntry entry = unowned.remove(readRawId());
+                    if (entry == null) continue;
+                    entry.consumer = consumer;
+                    consumer.pending.put(entry.id, entry);
+                    group.pending.put(entry.id, entry);
+                }
+            }
+            stream.groups.add(group);
+        }
+        return stream;
+    }
+
+    private StreamId readRawId() throws IOException {
+        ByteBuffer id = ByteBuffer.wrap(readBytes(16));
+        return new StreamId(id.getLong(), id.getLong());
+    }
+
+    private void insertBatches(BlockingQueue<List<Entry>> batches) throws InterruptedException {
+        while (true) {
+            List<Entry> batch = batches.take();
+            if (batch == END_OF_FILE) return;
+            // A failed worker keeps draining so the reader never blocks on a full queue.
+            if (insertFailure != null) continue;
+            try {
+                for (Entry entry : batch) {
+                    insert(entry);
+                }
+            } catch (RuntimeException e) {
+                insertFailure = e;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void insert(Entry entry) {
+        switch (entry.type) {
+            case TYPE_STRING:
+                kvStore.set(entry.key, (byte[]) entry.value, entry.expiryTime);
+                break;
+            case TYPE_STREAM_LISTPACKS:
+            case TYPE_STREAM_LISTPACKS_2:
+            case TYPE_STREAM_LISTPACKS_3:
+                StreamValue stream = (StreamValue) entry.value;
+                for (StreamRecord record : stream.records) {
+                    streamStore.add(entry.key.toString(), record.id, record.fields);
+                }
+                streamStore.restore(entry.key.toString(), stream.lastId, stream.groups);
+                break;
+            default:
+                listStore.rpush(entry.key.toString(), (List<String>) entry.value);
+                break;
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<List<Entry>> batches, List<Entry> batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                batches.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Length encoding: the top two bits of the first byte select a 6-bit, 14-bit, 32-bit or 64-bit
+    // length, or mark a specially encoded string (see readString).
+    private long readLength() throws IOException {
+        return readLength(readUnsignedByte());
+    }
+
+    private long readLength(int first) throws IOException {
+        switch (first >> 6) {
+            case 0:
+                return first & 0x3F;
+            case 1:
+                return ((first & 0x3F) << 8) | readUnsignedByte();
+            case 2:
+                if (first == 0x80) return Integer.reverseBytes(readInt()) & 0xFFFFFFFFL;
+                if (first == 0x81) return Long.reverseBytes(readLong());
+                throw new IOException("Invalid length encoding 0x" + Integer.toHexString(first));
+            default:
+                throw new IOException("Unexpected string encoding where a length was expected");
+        }
+    }
+
+    private byte[] readString() throws IOException {
+        int first = readUnsignedByte();
+        if ((first >> 6) != 3) {
+            return readBytes(toIntLength(readLength(first)));
+        }
+        switch (first & 0x3F) {
+            case ENCODING_INT8:
+                return ascii(Long.toString((byte) readUnsignedByte()));
+            case ENCODING_INT16:
+                ensure(2);
+                return ascii(Long.toString(buffer.getShort()));
+            case ENCODING_INT32:
+                return ascii(Long.toString(readInt()));
+            case ENCODING_LZF: {
+                int compressedLength = toIntLength(readLength());
+                int length = toIntLength(readLength());
+                return lzfDecompress(readBytes(compressedLength), length);
+            }
+            default:
+                throw new IOException("Unknown string encoding " + (first & 0x3F));
+        }
+    }
+
+    private void skipStrings(long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            readString();
+        }
+    }
+
+    // Ziplist: 10-byte header, then entries of <prevlen><encoding><data>, terminated by 0xFF.
+    private static List<String> readZiplist(byte[] bytes) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        in.position(10);
+        List<String> values = new ArrayList<>();
+        while (true) {
+            int prevLength = in.get() & 0xFF;
+            if (prevLength == 0xFF) break;
+            if (prevLength == 0xFE) in.getInt();
+            int encoding = in.get() & 0xFF;
+            switch (encoding >> 6) {
+                case 0:
+                    values.add(slice(in, encoding & 0x3F));
+                    continue;
+                case 1:
+                    values.add(slice(in, ((encoding & 0x3F) << 8) | (in.get() & 0xFF)));
+                    continue;
+                case 2:
+                    values.add(slice(in, in.order(ByteOrder.BIG_ENDIAN).getInt()));
+                    in.order(ByteOrder.LITTLE_ENDIAN);
+                    continue;
+            }
+            long value;
+            if (encoding == 0xC0) {
+                value = in.getShort();
+            } else if (encoding == 0xD0) {
+                value = in.getInt();
+            } else if (encoding == 0xE0) {
+                value = in.getLong();
+            } else if (encoding == 0xF0) {
+                value = ((in.get() & 0xFF) | ((in.get() & 0xFF) << 8) | (in.get() << 16));
+            } else if (encoding == 0xFE) {
+                value = in.get();
+            } else if (encoding >= 0xF1 && encoding <= 0xFD) {
+                value = (encoding & 0x0F) - 1;
+            } else {
+                throw new IOException("Invalid ziplist encoding 0x" + Integer.toHexString(encoding));
+            }
+            values.add(Long.toString(value));
+        }
+        return values;
+    }
+
+    // Listpack: 6-byte header, then entries of <encoding><data><backlen>, terminated by 0xFF.
+    private static List<String> readListpack(byte[] bytes) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        in.position(6);
+        List<String> values = new ArrayList<>();
+        while (true) {
+            int start = in.position();
+            int encoding = in.get() & 0xFF;
+            if (encoding == 0xFF) break;
+            if ((encoding & 0x80) == 0) {
+                values.add(Integer.toString(encoding));
+            } else if ((encoding & 0xC0) == 0x80) {
+                values.add(slice(in, encoding & 0x3F));
+            } else if ((encoding & 0xE0) == 0xC0) {
+                int value = ((encoding & 0x1F) << 8) | (in.get() & 0xFF);
+                values.add(Integer.toString((value << 19) >> 19));
+            } else if ((encoding & 0xF0) == 0xE0) {
+                values.add(slice(in, ((encoding & 0x0F) << 8) | (in.get() & 0xFF)));
+            } else if (encoding == 0xF0) {
+                values.add(slice(in, in.getInt()));
+            } else if (encoding == 0xF1) {
+                values.add(Short.toString(in.getShort()));
+            } else if (encoding == 0xF2) {
+                int value = (in.get() & 0xFF) | ((in.get() & 0xFF) << 8) | (in.get() << 16);
+                values.add(Integer.toString(value));
+            } else if (encoding == 0xF3) {
+                values.add(Integer.toString(in.getInt()));
+            } else if (encoding == 0xF4) {
+                values.add(Long.toString(in.getLong()));
+            } else {
+                throw new IOException("Invalid listpack encoding 0x" + Integer.toHexString(encoding));
+            }
+            in.position(in.position() + backlenSize(in.position() - start));
+        }
+        return values;
+    }
+
+    private static int backlenSize(int entryLength) {
+        if (entryLength <= 127) return 1;
+        if (entryLength < 16383) return 2;
+        if (entryLength < 2097151) return 3;
+        if (entryLength < 268435455) return 4;
+        return 5;
+    }
+
+    private static String slice(ByteBuffer in, int length) {
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private int readUnsignedByte() throws IOException {
+        ensure(1);
+        return buffer.get() & 0xFF;
+    }
+
+    private int readInt() throws IOException {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    private long readLong() throws IOException {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            if (!buffer.hasRemaining()) ensure(1);
+            int chunk = Math.min(buffer.remaining(), length - copied);
+            buffer.get(bytes, copied, chunk);
+            copied += chunk;
+        }
+        return bytes;
+    }
+
+    private void skipBytes(long length) throws IOException {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) ensure(1);
+            int chunk = (int) Math.min(buffer.remaining(), length);
+            buffer.position(buffer.position() + chunk);
+            length -= chunk;
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() >= n) return;
+        buffer.compact();
+        while (buffer.position() < n) {
+            if (channel.read(buffer) < 0) throw new EOFException("Truncated RDB file");
+        }
+        buffer.flip();
+    }
+
+    // LZF: a control byte below 32 starts a literal run of ctrl + 1 bytes; anything else is a
+    // back reference whose length is in the top 3 bits (7 meaning an extra length byte follows).
+    private static byte[] lzfDecompress(byte[] in, int length) throws IOException {
+        byte[] out = new byte[length];
+        int ip = 0;
+        int op = 0;
+        while (ip < in.length) {
+            int ctrl = in[ip++] & 0xFF;
+            if (ctrl < 32) {
+                int run = ctrl + 1;
+                if (op + run > length || ip + run > in.length) throw new IOException("Corrupt LZF string");
+                System.arraycopy(in, ip, out, op, run);
+                ip += run;
+                op += run;
+            } else {
+                int run = ctrl >> 5;
+                if (run == 7) run += in[ip++] & 0xFF;
+                run += 2;
+                int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+                if (ref < 0 || op + run > length) throw new IOException("Corrupt LZF string");
+                for (int i = 0; i < run; i++) {
+                    out[op++] = out[ref++];
+                }
+            }
+        }
+        if (op != length) throw new IOException("Corrupt LZF string");
+        return out;
+    }
+
+    private static int toIntLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE - 8) throw new IOException("RDB string too long: " + length);
+        return (int) length;
+    }
+
+    private static String utf8(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Encodes an RDB file onto a channel through a fixed buffer, keeping a running CRC64 for the trailer.
+public class RDBWriter implements SnapshotManager.DatasetWriter {
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final String RDB_VERSION = "0011";
+    private static final int STREAM_NODE_MAX_ENTRIES = 100;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long crc = 0;
+    private long written = 0;
+
+    public RDBWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public void writeHeader() throws IOException {
+        writeBytes(("REDIS" + RDB_VERSION).getBytes(StandardCharsets.US_ASCII));
+        writeAux("redis-ver", "7.2.0");
+        writeAux("redis-bits", "64");
+        writeAux("ctime", Long.toString(System.currentTimeMillis() / 1000));
+    }
+
+    public void selectDatabase(int database, long keys, long volatileKeys) throws IOException {
+        writeByte(RDBLoader.OPCODE_SELECTDB);
+        writeLength(database);
+        writeByte(RDBLoader.OPCODE_RESIZEDB);
+        writeLength(keys);
+        writeLength(volatileKeys);
+    }
+
+    @Override
+    public void writeString(ByteString key, byte[] value, long expiryTime) throws IOException {
+        writeExpiry(expiryTime);
+        writeByte(RDBLoader.TYPE_STRING);
+        writeString(key.bytes());
+        writeString(value);
+    }
+
+    @Override
+    public void writeList(String key, List<String> values) throws IOException {
+        writeByte(RDBLoader.TYPE_LIST);
+        writeString(utf8(key));
+        writeLength(values.size());
+        for (String value : values) {
+            writeString(utf8(value));
+        }
+    }
+
+    // Streams are written as listpack nodes of up to 100 entries. Each node's master entry carries the
+    // field names of its first entry, and entries with the same fields store only their values. Consumer
+    // groups follow with their PELs, delivery times in milliseconds.
+    @Override
+    public void writeStream(String key, StreamStore.StreamSnapshot stream) throws IOException {
+        List<StreamStore.StreamEntry> entries = stream.entries;
+        writeByte(RDBLoader.TYPE_STREAM_LISTPACKS);
+        writeString(utf8(key));
+        int nodes = (entries.size() + STREAM_NODE_MAX_ENTRIES - 1) / STREAM_NODE_MAX_ENTRIES;
+        writeLength(nodes);
+        for (int start = 0; start < entries.size(); start += STREAM_NODE_MAX_ENTRIES) {
+            List<StreamStore.StreamEntry> node = entries.subList(start, Math.min(entries.size(), start + STREAM_NODE_MAX_ENTRIES));
+            StreamId masterId = node.get(0).id;
+            writeString(rawId(masterId));
+            writeString(streamListpack(node, masterId));
+        }
+        writeLength(entries.size());
+        writeLength(stream.lastId.ms);
+        writeLength(stream.lastId.seq);
+        writeLength(stream.groups.size());
+        for (ConsumerGroup group : stream.groups) {
+            writeString(utf8(group.name));
+            writeLength(group.lastDelivered.ms);
+            writeLength(group.lastDelivered.seq);
+            writeLength(group.pending.size());
+            for (ConsumerGroup.PendingEntry entry : group.pending.values()) {
+                writeBytes(rawId(entry.id));
+                ensure(8);
+                buffer.putLong(entry.deliveryTime);
+                writeLength(entry.deliveryCount);
+            }
+            writeLength(group.consumers.size());
+            for (ConsumerGroup.Consumer consumer : group.consumers.values()) {
+                writeString(utf8(consumer.name));
+                ensure(8);
+                buffer.putLong(consumer.seenTime);
+                writeLength(consumer.pending.size());
+                for (StreamId id : consumer.pending.keySet()) {
+                    writeBytes(rawId(id));
+                }
+            }
+        }
+    }
+
+    // Stream IDs in keys and PELs are 16 big-endian bytes, so they sort as bytes.
+    private static byte[] rawId(StreamId id) {
+        return ByteBuffer.allocate(16).putLong(id.ms).putLong(id.seq).array();
+    }
+
+    private static byte[] streamListpack(List<StreamStore.StreamEntry> node, StreamId masterId) {
+        Listpack listpack = new Listpack();
+        List<String> masterFields = fieldNames(node.get(0).fields);
+        listpack.add(node.size()).add(0).add(masterFields.size());
+        for (String field : masterFields) {
+            listpack.add(field);
+        }
+        listpack.add(0);
+        for (StreamStore.StreamEntry entry : node) {
+            StreamId id = entry.id;
+            // SAMEFIELDS values are read back against the master fields in order, so the names must match in order.
+            boolean sameFields = fieldNames(entry.fields).equals(masterFields);
+            listpack.add(sameFields ? RDBLoader.STREAM_ITEM_FLAG_SAMEFIELDS : 0);
+            listpack.add(id.ms - masterId.ms).add(id.seq - masterId.seq);
+            if (sameFields) {
+                for (int i = 1; i < entry.fields.size(); i += 2) {
+                    listpack.add(entry.fields.get(i));
+                }
+                listpack.add(masterFields.size() + 3);
+            } else {
+                listpack.add(entry.fields.size() / 2);
+                for (String field : entry.fields) {
+                    listpack.add(field);
+                }
+                listpack.add(entry.fields.size() + 4);
+            }
+        }
+        return listpack.toByteArray();
+    }
+
+    private static List<String> fieldNames(List<String> fields) {
+        List<String> names = new ArrayList<>(fields.size() / 2);
+        for (int i = 0; i < fields.size(); i += 2) {
+            names.add(fields.get(i));
+        }
+        return names;
+    }
+
+    // Writes the EOF opcode and the CRC64 of everything before it, then drains the buffer.
+    public void finish() throws IOException {
+        writeByte(RDBLoader.OPCODE_EOF);
+        long checksum = crc;
+        ensure(8);
+        buffer.putLong(checksum);
+        drain();
+    }
+
+    public long bytesWritten() {
+        return written + buffer.position();
+    }
+
+    private void writeAux(String name, String value) throws IOException {
+        writeByte(RDBLoader.OPCODE_AUX);
+        writeString(utf8(name));
+        writeString(utf8(value));
+    }
+
+    private void writeExpiry(long expiryTime) throws IOException {
+        if (expiryTime == Long.MAX_VALUE) return;
+        writeByte(RDBLoader.OPCODE_EXPIRETIME_MS);
+        ensure(8);
+        buffer.putLong(expiryTime);
+    }
+
+    private void writeLength(long length) throws IOException {
+        if (length < 1 << 6) {
+            writeByte((int) length);
+        } else if (length < 1 << 14) {
+            writeByte(0x40 | (int) (length >> 8));
+            writeByte((int) (length & 0xFF));
+        } else if (length <= 0xFFFFFFFFL) {
+            writeByte(0x80);
+            ensure(4);
+            buffer.putInt(Integer.reverseBytes((int) length));
+        } else {
+            writeByte(0x81);
+            ensure(8);
+            buffer.putLong(Long.reverseBytes(length));
+        }
+    }
+
+    private void writeString(byte[] value) throws IOException {
+        writeLength(value.length);
+        writeBytes(value);
+    }
+
+    private void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) drain();
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) drain();
+    }
+
+    private void drain() throws IOException {
+        crc = Crc64.update(crc, buffer.array(), 0, buffer.position());
+        written += buffer.position();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Minimal listpack encoder: integers use the smallest integer encoding, everything else a string encoding.
+    private static class Listpack {
+        private final RESPWriter body = new RESPWriter();
+        private int count = 0;
+
+        Listpack add(long value) {
+            byte[] entry;
+            if (value >= 0 && value < 128) {
+                entry = new byte[]{(byte) value};
+            } else if (value >= -4096 && value < 4096) {
+                entry = new byte[]{(byte) (0xC0 | ((value >> 8) & 0x1F)), (byte) value};
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                entry = new byte[]{(byte) 0xF1, (byte) value, (byte) (value >> 8)};
+            } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                entry = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).put((byte) 0xF3).putInt((int) value).array();
+            } else {
+                entry = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN).put((byte) 0xF4).putLong(value).array();
+            }
+            return append(entry);
+        }
+
+        Listpack add(String value) {
+            byte[] bytes = utf8(value);
+            ByteBuffer entry;
+            if (bytes.length < 64) {
+                entry = ByteBuffer.allocate(1 + bytes.length).put((byte) (0x80 | bytes.length));
+            } else if (bytes.length < 4096) {
+                entry = ByteBuffer.allocate(2 + bytes.length).put((byte) (0xE0 | (bytes.length >> 8))).put((byte) bytes.length);
+            } else {
+                entry = ByteBuffer.allocate(5 + bytes.length).order(ByteOrder.LITTLE_ENDIAN).put((byte) 0xF0).putInt(bytes.length);
+            }
+            return append(entry.put(bytes).array());
+        }
+
+        private Listpack append(byte[] entry) {
+            body.raw(entry);
+            body.raw(backlen(entry.length));
+            count++;
+            return this;
+        }
+
+        // The entry length written backwards in 7-bit groups, so the list can be walked from the tail.
+        private static byte[] backlen(int length) {
+            if (length <= 127) return new byte[]{(byte) length};
+            if (length < 16383) return new byte[]{(byte) (length >> 7), (byte) ((length & 127) | 128)};
+            if (length < 2097151) {
+                return new byte[]{(byte) (length >> 14), (byte) (((length >> 7) & 127) | 128), (byte) ((length & 127) | 128)};
+            }
+            if (length < 268435455) {
+                return new byte[]{(byte) (length >> 21), (byte) (((length >> 14) & 127) | 128),
+                        (byte) (((length >> 7) & 127) | 128), (byte) ((length & 127) | 128)};
+            }
+            return new byte[]{(byte) (length >> 28), (byte) (((length >> 21) & 127) | 128), (byte) (((length >> 14) & 127) | 128),
+                    (byte) (((length >> 7) & 127) | 128), (byte) ((length & 127) | 128)};
+        }
+
+        byte[] toByteArray() {
+            byte[] entries = body.toByteArray();
+            ByteBuffer listpack = ByteBuffer.allocate(6 + entries.length + 1).order(ByteOrder.LITTLE_ENDIAN);
+            listpack.putInt(listpack.capacity()).putShort((short) Math.min(count, 65535)).put(entries).put((byte) 0xFF);
+            return listpack.array();
+        }
+    }
+}
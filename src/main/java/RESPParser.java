@@ -1,77 +1,267 @@
 import java.io.*;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class RESPParser {
-    public static class ParseResult {
-        List<String> command;
-        int bytesConsumed;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final long INCOMPLETE = Long.MIN_VALUE;
+    static final int EOF_MARK_LENGTH = 40;
 
-        ParseResult(List<String> command, int bytesConsumed) {
-            this.command = command;
-            this.bytesConsumed = bytesConsumed;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int readIndex = 0;
+
+    // Returns the buffer in write mode with free space at its position, ready for a channel read.
+    public ByteBuffer buffer() {
+        if (readIndex == buffer.position()) {
+            readIndex = 0;
+            buffer.clear();
+        }
+        if (!buffer.hasRemaining()) {
+            byte[] array = buffer.array();
+            int pending = buffer.position() - readIndex;
+            if (readIndex > 0) {
+                System.arraycopy(array, readIndex, array, 0, pending);
+            } else {
+                array = Arrays.copyOf(array, array.length * 2);
+            }
+            buffer = ByteBuffer.wrap(array);
+            buffer.position(pending);
+            readIndex = 0;
         }
+        return buffer;
     }
 
-    public static ParseResult parseRESP(InputStream in) throws IOException {
-        List<String> result = new ArrayList<>();
-        int bytesRead = 0;
-        DataInputStream reader = new DataInputStream(in);
+    // Bytes received but not parsed into a command yet.
+    public int buffered() {
+        return buffer.position() - readIndex;
+    }
 
-        int b = reader.read();
-        bytesRead++;
-        if ((char) b != '*') {
+    public Command next() throws IOException {
+        byte[] data = buffer.array();
+        int limit = buffer.position();
+        int pos = readIndex;
+        if (pos >= limit) return null;
+
+        if (data[pos] != '*') {
             throw new IOException("Expected RESP array (starts with '*')");
         }
+        long numArgs = parseLength(data, pos + 1, limit);
+        if (numArgs == INCOMPLETE) return null;
+        pos = skipLine(data, pos + 1);
 
-        String numArgsLine = readLine(reader);
-        bytesRead += numArgsLine.length() + 2;
-        int numArgs = Integer.parseInt(numArgsLine);
-
-        for (int i = 0; i < numArgs; i++) {
-            char prefix = (char) reader.read();
-            bytesRead++;
-            if (prefix != '$') {
+        int count = (int) Math.max(numArgs, 0);
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (pos >= limit) return null;
+            if (data[pos] != '$') {
                 throw new IOException("Expected bulk string (starts with '$')");
             }
+            long length = parseLength(data, pos + 1, limit);
+            if (length == INCOMPLETE) return null;
+            if (length < 0 || length > MAX_BULK_LENGTH) {
+                throw new IOException("Invalid bulk length");
+            }
+            pos = skipLine(data, pos + 1);
+            if (limit - pos < length + 2) return null;
+            offsets[i] = pos;
+            lengths[i] = (int) length;
+            pos += (int) length + 2;
+        }
+
+        Command command = new Command(data, offsets, lengths, readIndex, pos - readIndex);
+        readIndex = pos;
+        return command;
+    }
 
-            String lenLine = readLine(reader);
-            bytesRead += lenLine.length() + 2;
-            int length = Integer.parseInt(lenLine);
+    public Command read(InputStream in) throws IOException {
+        while (true) {
+            Command command = next();
+            if (command != null) return command;
+            if (!fill(in)) return null;
+        }
+    }
 
-            byte[] buf = new byte[length];
-            reader.readFully(buf);
-            bytesRead += length;
-            result.add(new String(buf));
+    // Reads one CRLF-terminated line outside the command stream, such as a +FULLRESYNC reply.
+    public String readLine(InputStream in) throws IOException {
+        while (true) {
+            byte[] data = buffer.array();
+            for (int i = readIndex; i + 1 < buffer.position(); i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n') {
+                    String line = new String(data, readIndex, i - readIndex, StandardCharsets.UTF_8);
+                    readIndex = i + 2;
+                    return line;
+                }
+            }
+            if (!fill(in)) {
+                throw new EOFException("Reached end of stream before a complete line");
+            }
+        }
+    }
 
-            readLine(reader);
-            bytesRead += 2;
+    // Reads the header of a raw bulk payload, like the RDB of a full resync, and returns a channel over
+    // its bytes. The header is either "$<len>" or, when the sender streams data of unknown size,
+    // "$EOF:<40-byte mark>" with the mark repeated after the data. Whatever follows the payload stays
+    // buffered for next(); closing the channel skips the part of the payload that was not read.
+    public ReadableByteChannel readPayload(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header.startsWith("$EOF:")) {
+            byte[] mark = header.substring(5).getBytes(StandardCharsets.US_ASCII);
+            if (mark.length != EOF_MARK_LENGTH) throw new IOException("Invalid EOF mark");
+            return new MarkedPayload(in, mark);
+        }
+        if (!header.startsWith("$")) {
+            throw new IOException("Expected bulk payload, got: " + header);
+        }
+        try {
+            return new SizedPayload(in, Long.parseLong(header.substring(1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid payload length: " + header);
         }
+    }
 
-        return new ParseResult(result, bytesRead);
+    public boolean fill(InputStream in) throws IOException {
+        ByteBuffer target = buffer();
+        int read = in.read(target.array(), target.position(), target.remaining());
+        if (read == -1) return false;
+        target.position(target.position() + read);
+        return true;
     }
 
-    private static String readLine(DataInputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        while (true) {
-            char c = (char) in.readByte();
-            if (c == '\r') {
-                if ((char) in.readByte() == '\n') break;
+    private static long parseLength(byte[] data, int pos, int limit) throws IOException {
+        boolean negative = false;
+        if (pos < limit && data[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long value = 0;
+        for (; pos < limit; pos++) {
+            byte b = data[pos];
+            if (b == '\r') {
+                if (pos + 1 >= limit) return INCOMPLETE;
+                if (data[pos + 1] != '\n') throw new IOException("Expected CRLF");
+                return negative ? -value : value;
+            }
+            if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+                throw new IOException("Invalid length");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return INCOMPLETE;
+    }
+
+    private static int skipLine(byte[] data, int pos) {
+        while (data[pos] != '\r') pos++;
+        return pos + 2;
+    }
+
+    // Hands out buffered payload bytes, filling the buffer from the stream whenever it runs dry.
+    private abstract class Payload implements ReadableByteChannel {
+        final InputStream in;
+        private boolean open = true;
+
+        Payload(InputStream in) {
+            this.in = in;
+        }
+
+        // Number of payload bytes buffered at readIndex, filling if there are none, or -1 at the end.
+        abstract int available() throws IOException;
+
+        abstract void consumed(int count);
+
+        @Override
+        public int read(ByteBuffer target) throws IOException {
+            int count = available();
+            if (count < 0) return -1;
+            count = Math.min(count, target.remaining());
+            target.put(buffer.array(), readIndex, count);
+            readIndex += count;
+            consumed(count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            int count;
+            while ((count = available()) >= 0) {
+                readIndex += count;
+                consumed(count);
             }
-            sb.append(c);
         }
-        return sb.toString();
     }
 
-    public static String buildArray(String... args) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("*").append(args.length).append("\r\n");
-        for (String arg : args) {
-            sb.append(buildBulkString(arg));
+    private class SizedPayload extends Payload {
+        private long remaining;
+
+        SizedPayload(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        int available() throws IOException {
+            if (remaining == 0) return -1;
+            if (readIndex == buffer.position() && !fill(in)) {
+                throw new EOFException("Reached end of stream inside a payload");
+            }
+            return (int) Math.min(remaining, buffer.position() - readIndex);
+        }
+
+        @Override
+        void consumed(int count) {
+            remaining -= count;
         }
-        return sb.toString();
     }
 
-    public static String buildBulkString(String value) {
-        return "$" + value.length() + "\r\n" + value + "\r\n";
+    // A byte can be handed out once the mark is known not to start at it, so the scan holds back the
+    // last 39 buffered bytes until more data or the mark arrives.
+    private class MarkedPayload extends Payload {
+        private final byte[] mark;
+        private boolean ended = false;
+
+        MarkedPayload(InputStream in, byte[] mark) {
+            super(in);
+            this.mark = mark;
+        }
+
+        @Override
+        int available() throws IOException {
+            if (ended) return -1;
+            while (true) {
+                byte[] data = buffer.array();
+                int limit = buffer.position();
+                int pos = readIndex;
+                boolean found = false;
+                for (; pos + mark.length <= limit; pos++) {
+                    if (data[pos] == mark[0] && Arrays.equals(data, pos, pos + mark.length, mark, 0, mark.length)) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (pos > readIndex) return pos - readIndex;
+                if (found) {
+                    readIndex += mark.length;
+                    ended = true;
+                    return -1;
+                }
+                if (!fill(in)) {
+                    throw new EOFException("Reached end of stream before the payload's EOF mark");
+                }
+            }
+        }
+
+        @Override
+        void consumed(int count) {
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class RESPWriter {
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final int RETAINED_BUFFER_SIZE = 1024 * 1024;
+    private static final int SHARED_INTEGERS = 10000;
+    private static final int SHARED_HEADERS = 32;
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] OK = ascii("+OK\r\n");
+    private static final byte[] NULL_BULK_STRING = ascii("$-1\r\n");
+    private static final byte[] NULL_ARRAY = ascii("*-1\r\n");
+    private static final byte[][] INTEGERS = new byte[SHARED_INTEGERS][];
+    private static final byte[][] ARRAY_HEADERS = new byte[SHARED_HEADERS][];
+    private static final byte[][] BULK_HEADERS = new byte[SHARED_HEADERS][];
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            INTEGERS[i] = ascii(":" + i + "\r\n");
+        }
+        for (int i = 0; i < SHARED_HEADERS; i++) {
+            ARRAY_HEADERS[i] = ascii("*" + i + "\r\n");
+            BULK_HEADERS[i] = ascii("$" + i + "\r\n");
+        }
+    }
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count = 0;
+
+    public RESPWriter ok() {
+        return raw(OK);
+    }
+
+    public RESPWriter simpleString(String value) {
+        ensureCapacity(value.length() + 3);
+        buffer[count++] = '+';
+        writeAscii(value);
+        return raw(CRLF);
+    }
+
+    public RESPWriter error(String message) {
+        ensureCapacity(message.length() + 3);
+        buffer[count++] = '-';
+        writeAscii(message);
+        return raw(CRLF);
+    }
+
+    public RESPWriter integer(long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            return raw(INTEGERS[(int) value]);
+        }
+        return prefixedNumber((byte) ':', value);
+    }
+
+    public RESPWriter bulkString(byte[] value) {
+        return bulkString(value, 0, value.length);
+    }
+
+    public RESPWriter bulkString(byte[] value, int offset, int length) {
+        if (length < SHARED_HEADERS) {
+            raw(BULK_HEADERS[length]);
+        } else {
+            prefixedNumber((byte) '$', length);
+        }
+        ensureCapacity(length + 2);
+        System.arraycopy(value, offset, buffer, count, length);
+        count += length;
+        return raw(CRLF);
+    }
+
+    public RESPWriter bulkString(String value) {
+        if (isAscii(value)) {
+            int length = value.length();
+            if (length < SHARED_HEADERS) {
+                raw(BULK_HEADERS[length]);
+            } else {
+                prefixedNumber((byte) '$', length);
+            }
+            ensureCapacity(length + 2);
+            writeAscii(value);
+            return raw(CRLF);
+        }
+        return bulkString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public RESPWriter nullBulkString() {
+        return raw(NULL_BULK_STRING);
+    }
+
+    public RESPWriter nullArray() {
+        return raw(NULL_ARRAY);
+    }
+
+    public RESPWriter arrayHeader(int size) {
+        if (size >= 0 && size < SHARED_HEADERS) {
+            return raw(ARRAY_HEADERS[size]);
+        }
+        return prefixedNumber((byte) '*', size);
+    }
+
+    public RESPWriter raw(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        if (count > 0) {
+            output.write(buffer, 0, count);
+        }
+        reset();
+    }
+
+    public void reset() {
+        count = 0;
+        if (buffer.length > RETAINED_BUFFER_SIZE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    public static byte[] encodeArray(String... args) {
+        RESPWriter writer = new RESPWriter();
+        writer.arrayHeader(args.length);
+        for (String arg : args) {
+            writer.bulkString(arg);
+        }
+        return writer.toByteArray();
+    }
+
+    private RESPWriter prefixedNumber(byte prefix, long value) {
+        ensureCapacity(23);
+        buffer[count++] = prefix;
+        if (value < 0) {
+            buffer[count++] = '-';
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return raw(CRLF);
+            }
+            value = -value;
+        }
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+        return raw(CRLF);
+    }
+
+    private void writeAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[count++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -1,87 +1,213 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class ReplicaClient {
+    private static final long RECONNECT_DELAY_MS = 1000;
+
     private final Map<String, String> config;
     private final KeyValueStore kvStore;
-    private final ReplicationManager replicationManager;
+    private final ListStore listStore;
+    private final StreamStore streamStore;
+    private final Function<Socket, ClientHandler> handlerFactory;
+    private final boolean serveStaleData;
+    private final boolean readOnly;
+    // Where the local dataset stands in the master's history, kept across reconnects.
+    private volatile String masterReplicationId = "?";
+    private volatile long processedOffset = -1;
+    // Link state, read by client threads for INFO and to decide whether they may serve.
+    private volatile ReplicaConnection connection;
+    private volatile boolean linkUp = false;
+    private volatile boolean syncInProgress = false;
+    private volatile long lastIoMillis = -1;
+    private volatile long linkDownSinceMillis = CachedClock.millis();
+    // The apply loop answers GETACK and the cron sends heartbeats on the same connection.
+    private final ReentrantLock ackLock = new ReentrantLock();
 
-    public ReplicaClient(Map<String, String> config, KeyValueStore kvStore, ReplicationManager replicationManager) {
+    public ReplicaClient(Map<String, String> config, KeyValueStore kvStore, ListStore listStore, StreamStore streamStore,
+                         Function<Socket, ClientHandler> handlerFactory) {
         this.config = config;
         this.kvStore = kvStore;
-        this.replicationManager = replicationManager;
+        this.listStore = listStore;
+        this.streamStore = streamStore;
+        this.handlerFactory = handlerFactory;
+        this.serveStaleData = !config.getOrDefault("replica-serve-stale-data", "yes").equalsIgnoreCase("no");
+        this.readOnly = !config.getOrDefault("replica-read-only", "yes").equalsIgnoreCase("no");
     }
 
+    // Keeps the link to the master alive: after a network blip the next session asks to continue from
+    // the last processed offset, and only falls back to a full resync when the master cannot serve it.
     public void connect() {
-        try {
-            String[] parts = config.get("replicaof").split(" ");
-            String masterHost = parts[0];
-            int masterPort = Integer.parseInt(parts[1]);
-            Socket socket = new Socket(masterHost, masterPort);
+        while (true) {
+            try {
+                replicate();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Replica connection error: " + e.getMessage());
+            } finally {
+                connection = null;
+                linkUp = false;
+                syncInProgress = false;
+                linkDownSinceMillis = CachedClock.millis();
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void replicate() throws IOException {
+        String[] parts = config.get("replicaof").split(" ");
+        String masterHost = parts[0];
+        int masterPort = Integer.parseInt(parts[1]);
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            socket.setTcpNoDelay(true);
             ReplicaConnection connection = new ReplicaConnection(socket);
+            lastIoMillis = CachedClock.millis();
 
             OutputStream out = connection.getOutputStream();
             InputStream in = connection.getInputStream();
 
             // Handshake
-            out.write(RESPParser.buildArray("PING").getBytes());
+            out.write(RESPWriter.encodeArray("PING"));
             out.flush();
             in.read(new byte[10000]);
 
-            out.write(RESPParser.buildArray("REPLCONF", "listening-port", config.get("port")).getBytes());
+            out.write(RESPWriter.encodeArray("REPLCONF", "listening-port", config.get("port")));
             out.flush();
             in.read(new byte[10000]);
 
-            out.write(RESPParser.buildArray("REPLCONF", "capa", "psync2").getBytes());
+            out.write(RESPWriter.encodeArray("REPLCONF", "capa", "eof", "capa", "psync2"));
             out.flush();
             in.read(new byte[10000]);
 
-            out.write(RESPParser.buildArray("PSYNC", "?", "-1").getBytes());
+            // PSYNC names the first byte we still need, one past what has been processed.
+            out.write(RESPWriter.encodeArray("PSYNC", masterReplicationId,
+                    masterReplicationId.equals("?") ? "-1" : String.valueOf(processedOffset + 1)));
             out.flush();
 
-            PushbackInputStream pin = new PushbackInputStream(in);
-            skipUntilStar(pin);
-
-            // Main replication loop
-            while (true) {
-                RESPParser.ParseResult result = RESPParser.parseRESP(pin);
-                List<String> command = result.command;
-                if (command.isEmpty()) continue;
-
-                String cmd = command.get(0).toUpperCase();
-                switch (cmd) {
-                    case "PING":
-                        connection.setOffset(connection.getOffset() + result.bytesConsumed);
-                        break;
-                    case "SET":
-                        kvStore.set(command.get(1), command.get(2), Long.MAX_VALUE);
-                        connection.setOffset(connection.getOffset() + result.bytesConsumed);
-                        break;
-                    case "REPLCONF":
-                        String response = RESPParser.buildArray("REPLCONF", "ACK",
-                                String.valueOf(connection.getOffset()));
-                        connection.setOffset(connection.getOffset() + result.bytesConsumed);
-                        out.write(response.getBytes());
-                        out.flush();
-                        break;
-                    default:
-                        System.out.println("Unknown command: " + cmd);
+            RESPParser parser = new RESPParser();
+            String reply = parser.readLine(in);
+            lastIoMillis = CachedClock.millis();
+            if (reply.startsWith("+CONTINUE")) {
+                String[] continued = reply.split(" ");
+                if (continued.length > 1) masterReplicationId = continued[1];
+                System.out.println("Partial resync from offset " + processedOffset);
+            } else {
+                loadSnapshot(reply, parser, in);
+            }
+            connection.setOffset(processedOffset);
+            this.connection = connection;
+            linkUp = true;
+
+            // The stream is applied through the same command path as clients use, so every write the master
+            // propagates is understood here, and this server's AOF and replicas see it too.
+            ClientHandler master = handlerFactory.apply(socket);
+            master.setMasterLink();
+            OutputStream discard = OutputStream.nullOutputStream();
+            long offset = processedOffset;
+            try {
+                while (true) {
+                    Command command = parser.next();
+                    if (command == null) {
+                        // Everything received so far is applied; flush once per read, not once per command.
+                        master.flush(discard);
+                        if (!parser.fill(in)) throw new EOFException("Master closed the connection");
+                        lastIoMillis = CachedClock.millis();
+                        continue;
+                    }
+                    if (command.isEmpty()) continue;
+
+                    if (command.name().equals("REPLCONF")) {
+                        sendAck();
+                    } else {
+                        master.process(command, discard);
+                    }
+                    // Every byte of the stream counts towards the offset, whether or not it changed anything,
+                    // but a MULTI block only counts once its EXEC has applied it: resuming in the middle of
+                    // one would lose the queued part.
+                    offset += command.frameLength();
+                    if (!master.inTransaction()) {
+                        connection.setOffset(offset);
+                        processedOffset = offset;
+                    }
                 }
+            } finally {
+                master.close();
             }
-        } catch (IOException e) {
-            System.out.println("Replica connection error: " + e.getMessage());
         }
     }
 
-    private void skipUntilStar(PushbackInputStream pin) throws IOException {
-        int b;
-        while ((b = pin.read()) != -1) {
-            if (b == '*') {
-                pin.unread(b);
-                return;
-            }
+    // Replaces the local dataset with the master's snapshot. The stream of commands that follows it
+    // starts at the offset named in the +FULLRESYNC reply.
+    private void loadSnapshot(String reply, RESPParser parser, InputStream in) throws IOException {
+        String[] parts = reply.split(" ");
+        if (!parts[0].equals("+FULLRESYNC") || parts.length != 3) {
+            throw new IOException("Unexpected PSYNC reply: " + reply);
         }
-        throw new EOFException("Reached end of stream before finding '*'");
+        // Until the load completes the local data matches no offset of any master.
+        masterReplicationId = "?";
+        syncInProgress = true;
+        kvStore.clear();
+        listStore.clear();
+        streamStore.clear();
+        try (ReadableByteChannel payload = parser.readPayload(in)) {
+            new RDBLoader(kvStore, listStore, streamStore, Runtime.getRuntime().availableProcessors())
+                    .load(payload, "master " + config.get("replicaof"));
+        }
+        syncInProgress = false;
+        masterReplicationId = parts[1];
+        processedOffset = Long.parseLong(parts[2]);
+    }
+
+    // Reports the processed offset; the master measures lag by when these last arrived.
+    public void sendAck() {
+        ReplicaConnection link = connection;
+        if (link == null) return;
+        ackLock.lock();
+        try {
+            OutputStream out = link.getOutputStream();
+            out.write(RESPWriter.encodeArray("REPLCONF", "ACK", String.valueOf(link.getOffset())));
+            out.flush();
+        } catch (IOException e) {
+            // The apply loop sees the broken connection and reconnects.
+        } finally {
+            ackLock.unlock();
+        }
+    }
+
+    public boolean isLinkUp() {
+        return linkUp;
+    }
+
+    // The dataset is being replaced by the master's snapshot and is neither old nor new.
+    public boolean isLoading() {
+        return syncInProgress;
+    }
+
+    public boolean servesStaleData() {
+        return serveStaleData;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public String info() {
+        String[] master = config.get("replicaof").split(" ");
+        long now = CachedClock.millis();
+        StringBuilder info = new StringBuilder("role:slave")
+                .append("\nmaster_host:").append(master[0])
+                .append("\nmaster_port:").append(master[1])
+                .append("\nmaster_link_status:").append(linkUp ? "up" : "down")
+                .append("\nmaster_last_io_seconds_ago:").append(linkUp ? (now - lastIoMillis) / 1000 : -1)
+                .append("\nmaster_sync_in_progress:").append(syncInProgress ? 1 : 0)
+                .append("\nslave_repl_offset:").append(processedOffset);
+        if (!linkUp) info.append("\nmaster_link_down_since_seconds:").append((now - linkDownSinceMillis) / 1000);
+        return info.append("\nslave_read_only:").append(readOnly ? 1 : 0).toString();
     }
-}
\ No newline at end of file
+}
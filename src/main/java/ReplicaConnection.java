@@ -1,25 +1,165 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ReplicaConnection {
+    private static final int WRITE_BATCH_SIZE = 64 * 1024;
+
     private final Socket socket;
     private final InputStream inputStream;
     private final OutputStream outputStream;
-    private long offset;
-    private boolean acked;
+    // On the master, the offset the replica last acknowledged; on the replica, the offset processed.
+    private volatile long offset;
+    // Master side: when the replica last sent REPLCONF ACK, the port it serves clients on, and whether the
+    // initial sync is done and the stream flows, for INFO.
+    private volatile long lastAckMillis = CachedClock.millis();
+    private volatile int listeningPort = 0;
+    private volatile boolean online = false;
+    // Master side only. Propagated commands queue here, as references to the one array encoded for all
+    // replicas, and a writer thread drains them, so a slow replica never holds up the writing client.
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition queued = queueLock.newCondition();
+    private final ArrayDeque<byte[]> outputQueue = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long softLimitExceededSince = -1;
+    private OutputLimit outputLimit = OutputLimit.NONE;
+    private volatile boolean closed = false;
+
+    // Redis' client-output-buffer-limit for replicas: a replica whose unsent output reaches the hard
+    // limit, or stays above the soft limit for the soft period, is disconnected rather than buffered
+    // without bound. A limit of 0 disables that check.
+    public static class OutputLimit {
+        static final OutputLimit NONE = new OutputLimit(0, 0, 0);
+
+        final long hardBytes;
+        final long softBytes;
+        final long softMillis;
+
+        public OutputLimit(long hardBytes, long softBytes, long softMillis) {
+            this.hardBytes = hardBytes;
+            this.softBytes = softBytes;
+            this.softMillis = softMillis;
+        }
+    }
 
     public ReplicaConnection(Socket socket, InputStream inputStream, OutputStream outputStream) {
         this.socket = socket;
         this.inputStream = inputStream;
         this.outputStream = outputStream;
         this.offset = 0;
-        this.acked = false;
+    }
+
+    public ReplicaConnection(Socket socket, OutputStream outputStream, OutputLimit outputLimit) {
+        this(socket, null, outputStream);
+        this.outputLimit = outputLimit;
     }
 
     public ReplicaConnection(Socket socket) throws IOException {
         this(socket, socket.getInputStream(), socket.getOutputStream());
     }
 
+    // Commands sent before this queue up behind the snapshot or backlog the caller is writing directly.
+    public void startWriter() {
+        online = true;
+        Thread.ofVirtual().name("replica-writer").start(this::writeLoop);
+    }
+
+    // Queues a propagated command; returns false once the replica is disconnected.
+    public boolean send(byte[] command) {
+        queueLock.lock();
+        try {
+            if (closed) return false;
+            outputQueue.add(command);
+            queuedBytes += command.length;
+            if (exceedsOutputLimit()) {
+                System.out.println("Disconnecting replica " + socket.getRemoteSocketAddress() + ": "
+                        + queuedBytes + " bytes of output pending");
+                close();
+                return false;
+            }
+            queued.signal();
+            return true;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    private boolean exceedsOutputLimit() {
+        if (outputLimit.hardBytes > 0 && queuedBytes >= outputLimit.hardBytes) return true;
+        if (outputLimit.softBytes == 0 || queuedBytes < outputLimit.softBytes) {
+            softLimitExceededSince = -1;
+            return false;
+        }
+        long now = CachedClock.millis();
+        if (softLimitExceededSince < 0) softLimitExceededSince = now;
+        return now - softLimitExceededSince >= outputLimit.softMillis;
+    }
+
+    // Coalesces queued commands into writes of up to WRITE_BATCH_SIZE bytes, one flush per batch.
+    private void writeLoop() {
+        RESPWriter batch = new RESPWriter();
+        try {
+            while (true) {
+                int batchBytes = 0;
+                queueLock.lock();
+                try {
+                    while (outputQueue.isEmpty() && !closed) {
+                        queued.await();
+                    }
+                    if (closed) return;
+                    while (!outputQueue.isEmpty() && batchBytes < WRITE_BATCH_SIZE) {
+                        byte[] command = outputQueue.poll();
+                        batch.raw(command);
+                        batchBytes += command.length;
+                    }
+                } finally {
+                    queueLock.unlock();
+                }
+                batch.writeTo(outputStream);
+                outputStream.flush();
+                queueLock.lock();
+                try {
+                    queuedBytes -= batchBytes;
+                } finally {
+                    queueLock.unlock();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            if (!closed) System.out.println("Replica write error: " + e.getMessage());
+            close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public long getQueuedBytes() {
+        queueLock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public void close() {
+        queueLock.lock();
+        try {
+            closed = true;
+            outputQueue.clear();
+            queuedBytes = 0;
+            queued.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
     public Socket getSocket() {
         return socket;
     }
@@ -40,11 +180,23 @@ public class ReplicaConnection {
         this.offset = offset;
     }
 
-    public boolean isAcked() {
-        return acked;
+    public void acked() {
+        lastAckMillis = CachedClock.millis();
+    }
+
+    public long getLastAckMillis() {
+        return lastAckMillis;
+    }
+
+    public int getListeningPort() {
+        return listeningPort;
+    }
+
+    public void setListeningPort(int listeningPort) {
+        this.listeningPort = listeningPort;
     }
 
-    public void setAcked(boolean acked) {
-        this.acked = acked;
+    public boolean isOnline() {
+        return online;
     }
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+// Fixed-size ring of the most recently propagated bytes, so a replica that lost its connection can
+// resume from its offset instead of reloading the dataset. The byte at replication offset o lives at
+// o % size. Not thread-safe; ReplicationManager calls it under its propagation lock.
+public class ReplicationBacklog {
+    private final byte[] ring;
+    // Replication offset just past the newest byte, and how many bytes before it are still held.
+    private long endOffset;
+    private long length = 0;
+
+    public ReplicationBacklog(int size, long offset) {
+        this.ring = new byte[size];
+        this.endOffset = offset;
+    }
+
+    public void append(byte[] data) {
+        // Only the tail of an oversized write can survive anyway.
+        int from = Math.max(0, data.length - ring.length);
+        long offset = endOffset + from;
+        while (from < data.length) {
+            int pos = (int) (offset % ring.length);
+            int chunk = Math.min(ring.length - pos, data.length - from);
+            System.arraycopy(data, from, ring, pos, chunk);
+            from += chunk;
+            offset += chunk;
+        }
+        endOffset += data.length;
+        length = Math.min(ring.length, length + data.length);
+    }
+
+    // Returns the bytes from the given offset to the end, or null when the offset is not covered.
+    public byte[] readFrom(long offset) {
+        if (offset < startOffset() || offset > endOffset) return null;
+        byte[] data = new byte[(int) (endOffset - offset)];
+        int copied = 0;
+        while (copied < data.length) {
+            int pos = (int) ((offset + copied) % ring.length);
+            int chunk = Math.min(ring.length - pos, data.length - copied);
+            System.arraycopy(ring, pos, data, copied, chunk);
+            copied += chunk;
+        }
+        return data;
+    }
+
+    public long startOffset() {
+        return endOffset - length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public int size() {
+        return ring.length;
+    }
+}
@@ -1,80 +1,375 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ReplicationManager {
-    private final List<ReplicaConnection> replicas = new ArrayList<>();
-    private long masterOffset = 0;
+    private static final int REPLICATION_ID_LENGTH = 40;
+    private static final int SYNC_CHUNK_SIZE = 64 * 1024;
+    private static final byte[] GETACK = RESPWriter.encodeArray("REPLCONF", "GETACK", "*");
+    private static final byte[] PING = RESPWriter.encodeArray("PING");
+    // Seconds between PINGs to replicas, so they can tell an idle master from a dead link.
+    private static final int REPL_PING_PERIOD = 10;
 
-    public void handlePsync(Socket socket, InputStream input, OutputStream output) throws IOException {
-        String replicationId = "0123456789abcdef0123456789abcdef01234567";
-        output.write(("+FULLRESYNC " + replicationId + " 0\r\n").getBytes());
-        output.flush();
+    private final SnapshotManager snapshotManager;
+    private final int backlogSize;
+    private final ReplicaConnection.OutputLimit outputLimit;
+    // A new id per run: offsets from another run's history must never match ours.
+    private final String replicationId = randomHex(REPLICATION_ID_LENGTH);
+    // Indexed by connection so an ACK finds its replica directly. Replicas are added from sync threads and
+    // dropped on disconnect while client threads iterate the values.
+    private final Map<Socket, ReplicaConnection> replicas = new ConcurrentHashMap<>();
+    // Pending WAITs ordered by the offset they wait for, so an ACK only visits the ones it can advance.
+    private final ConcurrentSkipListSet<AckWaiter> waiters = new ConcurrentSkipListSet<>(
+            Comparator.<AckWaiter>comparingLong(w -> w.targetOffset).thenComparingLong(w -> w.id));
+    private final AtomicLong waiterIds = new AtomicLong();
+    // Orders propagation, so the AOF and every replica see writes in the same order as masterOffset.
+    private final ReentrantLock propagationLock = new ReentrantLock();
+    private final WriteSequence writeSequence = new WriteSequence();
+    // The next write ticket to go out; later ones wait on turn. Guarded by propagationLock.
+    private long nextTicket = 1;
+    private final Condition turn = propagationLock.newCondition();
+    private volatile long masterOffset = 0;
+    // Created when the first replica attaches, as in Redis; guarded by propagationLock.
+    private ReplicationBacklog backlog;
+    private volatile AppendOnlyFile appendOnlyFile;
+    // Set when this server is itself a replica.
+    private volatile ReplicaClient masterLink;
+    private int cronTicks = 0;
 
-        String base64RDB = "UkVESVMwMDEx+glyZWRpcy12ZXIFNy4yLjD6CnJlZGlzLWJpdHPAQPoFY3RpbWXCbQi8ZfoIdXNlZC1tZW3CsMQQAPoIYW9mLWJhc2XAAP/wbjv+wP9aog==";
-        byte[] rdbBytes = Base64.getDecoder().decode(base64RDB);
-        output.write(("$" + rdbBytes.length + "\r\n").getBytes());
-        output.write(rdbBytes);
-        output.flush();
+    public ReplicationManager(SnapshotManager snapshotManager, int backlogSize, ReplicaConnection.OutputLimit outputLimit) {
+        this.snapshotManager = snapshotManager;
+        this.backlogSize = backlogSize;
+        this.outputLimit = outputLimit;
+    }
+
+    public void setAppendOnlyFile(AppendOnlyFile appendOnlyFile) {
+        this.appendOnlyFile = appendOnlyFile;
+    }
 
-        replicas.add(new ReplicaConnection(socket, input, output));
+    public void setMasterLink(ReplicaClient masterLink) {
+        this.masterLink = masterLink;
     }
 
-    public void propagateCommand(String command, int bytesConsumed) throws IOException {
-        masterOffset += bytesConsumed;
-        for (ReplicaConnection replica : replicas) {
+    public ReplicaClient getMasterLink() {
+        return masterLink;
+    }
+
+    // Runs once a second: keeps both directions of every replication link busy enough that lag and
+    // dead links show up, as Redis' replicationCron does.
+    public void replicationCron() {
+        ReplicaClient link = masterLink;
+        if (link != null) link.sendAck();
+        if (++cronTicks % REPL_PING_PERIOD == 0 && !replicas.isEmpty()) propagate(PING, null);
+    }
+
+    // Continues from the backlog when the replica names our replication id and an offset it still holds,
+    // as PSYNC does: the offset is that of the first byte wanted, one past what the replica has. Otherwise
+    // starts a full resync on its own thread, so the caller's event loop keeps serving other clients.
+    public void handlePsync(Socket socket, OutputStream output, String requestedId, long requestedOffset,
+                            boolean eofCapable, int listeningPort) {
+        ReplicaConnection replica = new ReplicaConnection(socket, output, outputLimit);
+        replica.setListeningPort(listeningPort);
+        byte[] missing = attachPartial(replica, requestedId, requestedOffset - 1);
+        if (missing != null) {
             try {
-                replica.getOutputStream().write(command.getBytes());
-                replica.getOutputStream().flush();
-                replica.setOffset(replica.getOffset() + bytesConsumed);
+                output.write(("+CONTINUE " + replicationId + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                output.write(missing);
+                output.flush();
+                replica.startWriter();
+                System.out.println("Partial resync with " + socket.getRemoteSocketAddress() + ", sent "
+                        + missing.length + " bytes from the backlog");
             } catch (IOException e) {
-                // Skip failed replica
+                System.out.println("Partial resync failed: " + e.getMessage());
+                detach(replica);
             }
+            return;
         }
+        Thread.ofPlatform().name("repl-sync").daemon().start(() -> {
+            try {
+                fullResync(replica, eofCapable);
+            } catch (IOException e) {
+                System.out.println("Full resync failed: " + e.getMessage());
+                detach(replica);
+            }
+        });
     }
 
-    public int waitForAcks(int requiredAcks, int timeoutMs, long masterOffset) throws IOException {
-        long deadline = System.currentTimeMillis() + timeoutMs;
-        List<ReplicaConnection> acked = new ArrayList<>();
+    // The replica joins the propagation list at the snapshot instant; everything written after it queues
+    // until the transfer is done. Replicas that announced "capa eof" get the RDB streamed straight from the snapshot scan with an
+    // EOF mark, so the dump is never materialized; others get it from memory with its length upfront.
+    private void fullResync(ReplicaConnection replica, boolean eofCapable) throws IOException {
+        OutputStream output = replica.getOutputStream();
+        if (eofCapable) {
+            byte[] mark = randomHex(RESPParser.EOF_MARK_LENGTH).getBytes(StandardCharsets.US_ASCII);
+            RDBWriter writer = new RDBWriter(new ChunkChannel(output));
+            snapshotManager.writeRdb(writer, () -> {
+                try {
+                    output.write(fullResyncLine(attach(replica)));
+                    output.write(("$EOF:" + new String(mark, StandardCharsets.US_ASCII) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            output.write(mark);
+        } else {
+            ByteArrayOutputStream dump = new ByteArrayOutputStream();
+            long[] offset = new long[1];
+            snapshotManager.writeRdb(new RDBWriter(Channels.newChannel(dump)), () -> offset[0] = attach(replica));
+            byte[] rdb = dump.toByteArray();
+            output.write(fullResyncLine(offset[0]));
+            output.write(("$" + rdb.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (int start = 0; start < rdb.length; start += SYNC_CHUNK_SIZE) {
+                output.write(rdb, start, Math.min(SYNC_CHUNK_SIZE, rdb.length - start));
+                output.flush();
+            }
+        }
+        output.flush();
+        replica.startWriter();
+        System.out.println("Full resync with " + replica.getSocket().getRemoteSocketAddress() + " finished");
+    }
 
-        for (ReplicaConnection replica : replicas) {
-            try {
-                Writer writer = new OutputStreamWriter(replica.getOutputStream(), "UTF-8");
-                writer.write("*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n");
-                writer.flush();
-            } catch (IOException e) {
-                // Skip failed write
+    private byte[] attachPartial(ReplicaConnection replica, String requestedId, long offset) {
+        propagationLock.lock();
+        try {
+            if (backlog == null || !replicationId.equals(requestedId)) return null;
+            byte[] missing = backlog.readFrom(offset);
+            if (missing == null) return null;
+            replicas.put(replica.getSocket(), replica);
+            return missing;
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    private long attach(ReplicaConnection replica) {
+        propagationLock.lock();
+        try {
+            if (backlog == null) backlog = new ReplicationBacklog(backlogSize, masterOffset);
+            replicas.put(replica.getSocket(), replica);
+            return masterOffset;
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    private void detach(ReplicaConnection replica) {
+        replicas.remove(replica.getSocket(), replica);
+        replica.close();
+    }
+
+    // Drops the replica served on this connection, if any, once the connection closes.
+    public void detach(Socket socket) {
+        ReplicaConnection replica = replicas.get(socket);
+        if (replica != null) detach(replica);
+    }
+
+    private byte[] fullResyncLine(long offset) {
+        return ("+FULLRESYNC " + replicationId + " " + offset + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static String randomHex(int length) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder hex = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            hex.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return hex.toString();
+    }
+
+    public WriteSequence writeSequence() {
+        return writeSequence;
+    }
+
+    // Every write that changes the dataset comes through here, in the form replicas and the AOF replay,
+    // with the ticket it took when it was applied. Each ticket goes out after all earlier ones, so a
+    // write waits here for those applied before it; a null command only passes the turn on. Returns the
+    // AOF sequence of the command, or 0 when the AOF is off or there was nothing to write.
+    public long propagateCommand(long ticket, byte[] command) {
+        propagationLock.lock();
+        try {
+            while (ticket != nextTicket) {
+                turn.awaitUninterruptibly();
+            }
+            nextTicket++;
+            turn.signalAll();
+            return command != null ? propagate(command, appendOnlyFile) : 0;
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    private long propagate(byte[] command, AppendOnlyFile aof) {
+        propagationLock.lock();
+        try {
+            long sequence = aof != null ? aof.append(command) : 0;
+            masterOffset += command.length;
+            if (backlog != null) backlog.append(command);
+            // Only queues references to the same array; the replicas' writer threads do the I/O.
+            for (ReplicaConnection replica : replicas.values()) {
+                if (!replica.send(command)) replicas.remove(replica.getSocket(), replica);
             }
+            return sequence;
+        } finally {
+            propagationLock.unlock();
         }
+    }
 
-        while (System.currentTimeMillis() < deadline) {
-            for (ReplicaConnection replica : replicas) {
-                if (acked.contains(replica)) continue;
-                if (replica.getOffset() >= masterOffset && replica.isAcked()) {
-                    acked.add(replica);
-                }
+    public void awaitPropagated(long sequence) {
+        AppendOnlyFile aof = appendOnlyFile;
+        if (aof != null && sequence > 0) aof.awaitWritten(sequence);
+    }
+
+    // Completes once the commands up to sequence are durable; null when they already are.
+    public CompletableFuture<Void> propagated(long sequence) {
+        AppendOnlyFile aof = appendOnlyFile;
+        return aof != null && sequence > 0 ? aof.written(sequence) : null;
+    }
+
+    // WAIT: parks until enough replicas have acknowledged targetOffset or the timeout passes (0 waits
+    // forever), and returns how many have. The waiter is completed by updateReplicaOffset as ACKs arrive,
+    // so waiting costs nothing but a parked thread.
+    public int waitForAcks(int requiredAcks, long timeoutMs, long targetOffset) {
+        AckWaiter waiter = new AckWaiter(targetOffset, requiredAcks, waiterIds.incrementAndGet());
+        waiters.add(waiter);
+        try {
+            // Registered first, so an ACK racing with this scan is seen by one side or the other.
+            for (ReplicaConnection replica : replicas.values()) {
+                if (replica.getOffset() >= targetOffset) waiter.ack(replica);
             }
-            if (acked.size() >= requiredAcks) break;
+            if (waiter.done.isDone()) return waiter.count();
+            // GETACK is part of the replication stream: replicas count it, so the offsets must include it.
+            propagate(GETACK, null);
             try {
-                Thread.sleep(5);
-            } catch (InterruptedException ignored) {}
+                if (timeoutMs > 0) {
+                    waiter.done.get(timeoutMs, TimeUnit.MILLISECONDS);
+                } else {
+                    waiter.done.get();
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                // Reply with however many made it in time.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return waiter.count();
+        } finally {
+            waiters.remove(waiter);
         }
-
-        return masterOffset == 0 ? replicas.size() : acked.size();
     }
 
     public void updateReplicaOffset(Socket socket, long offset) {
-        for (ReplicaConnection replica : replicas) {
-            if (replica.getSocket().equals(socket)) {
-                replica.setOffset(offset);
-                replica.setAcked(true);
-                break;
-            }
+        ReplicaConnection replica = replicas.get(socket);
+        if (replica == null) return;
+        replica.acked();
+        long previous = replica.getOffset();
+        if (offset <= previous) return;
+        replica.setOffset(offset);
+        // Waiters at or below the previous offset have counted this replica already.
+        for (AckWaiter waiter : waiters.subSet(AckWaiter.bound(previous), false, AckWaiter.bound(offset), true)) {
+            waiter.ack(replica);
         }
     }
 
     public long getMasterOffset() {
         return masterOffset;
     }
-}
\ No newline at end of file
+
+    // On a replica the master link comes first; the rest describes this server's own replicas, which
+    // includes a replica's sub-replicas.
+    public String info() {
+        ReplicaClient link = masterLink;
+        StringBuilder info = new StringBuilder(link != null ? link.info() : "role:master");
+        info.append("\nconnected_slaves:").append(replicas.size());
+        int index = 0;
+        long now = CachedClock.millis();
+        for (ReplicaConnection replica : replicas.values()) {
+            Socket socket = replica.getSocket();
+            info.append("\nslave").append(index++).append(":ip=").append(socket.getInetAddress().getHostAddress())
+                    .append(",port=").append(replica.getListeningPort())
+                    .append(",state=").append(replica.isOnline() ? "online" : "send_bulk")
+                    .append(",offset=").append(replica.getOffset())
+                    .append(",lag=").append((now - replica.getLastAckMillis()) / 1000);
+        }
+        propagationLock.lock();
+        try {
+            return info
+                    + "\nmaster_replid:" + replicationId
+                    + "\nmaster_repl_offset:" + masterOffset
+                    + "\nrepl_backlog_active:" + (backlog != null ? 1 : 0)
+                    + "\nrepl_backlog_size:" + backlogSize
+                    + "\nrepl_backlog_first_byte_offset:" + (backlog != null ? backlog.startOffset() + 1 : 0)
+                    + "\nrepl_backlog_histlen:" + (backlog != null ? backlog.length() : 0);
+        } finally {
+            propagationLock.unlock();
+        }
+    }
+
+    private static class AckWaiter {
+        final long targetOffset;
+        final int requiredAcks;
+        final long id;
+        final Set<ReplicaConnection> acked = ConcurrentHashMap.newKeySet();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        AckWaiter(long targetOffset, int requiredAcks, long id) {
+            this.targetOffset = targetOffset;
+            this.requiredAcks = requiredAcks;
+            this.id = id;
+            if (requiredAcks <= 0) done.complete(null);
+        }
+
+        // Sorts after every real waiter with the same target, for range bounds in the waiter set.
+        static AckWaiter bound(long targetOffset) {
+            return new AckWaiter(targetOffset, 0, Long.MAX_VALUE);
+        }
+
+        // Each replica counts once, whether its ACK or the initial scan gets here first.
+        void ack(ReplicaConnection replica) {
+            if (acked.add(replica) && acked.size() >= requiredAcks) done.complete(null);
+        }
+
+        int count() {
+            return acked.size();
+        }
+    }
+
+    // Lets RDBWriter drain straight into a replica's output, one flushed chunk per buffer drain.
+    private static class ChunkChannel implements WritableByteChannel {
+        private final OutputStream output;
+
+        ChunkChannel(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            output.write(source.array(), source.arrayOffset() + source.position(), length);
+            output.flush();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SAVE and BGSAVE. Both write a temporary file next to the target, fsync it and rename it into place,
+// so a crash mid-save never leaves a truncated dump behind.
+public class SnapshotManager {
+    public interface DatasetWriter {
+        void writeString(ByteString key, byte[] value, long expiryTime) throws IOException;
+
+        void writeList(String key, List<String> values) throws IOException;
+
+        void writeStream(String key, StreamStore.StreamSnapshot stream) throws IOException;
+    }
+
+    private static final String DEFAULT_DIR = ".";
+    private static final String DEFAULT_DBFILENAME = "dump.rdb";
+
+    private final KeyValueStore kvStore;
+    private final ListStore listStore;
+    private final StreamStore streamStore;
+    private final Map<String, String> config;
+    private final AtomicBoolean saving = new AtomicBoolean(false);
+    private final WriteBarrier writeBarrier = new WriteBarrier();
+    // Saves, AOF rewrites and replica syncs take turns, so a second one waits without pausing writers.
+    private final ReentrantLock captureLock = new ReentrantLock();
+
+    private volatile boolean bgsaveInProgress = false;
+    private volatile long lastSaveTime = System.currentTimeMillis() / 1000;
+    private volatile boolean lastBgsaveOk = true;
+    private volatile long lastBgsaveMillis = -1;
+    private volatile long lastCowBytes = 0;
+    private volatile AppendOnlyFile appendOnlyFile;
+
+    public SnapshotManager(KeyValueStore kvStore, ListStore listStore, StreamStore streamStore, Map<String, String> config) {
+        this.kvStore = kvStore;
+        this.listStore = listStore;
+        this.streamStore = streamStore;
+        this.config = config;
+    }
+
+    public void setAppendOnlyFile(AppendOnlyFile appendOnlyFile) {
+        this.appendOnlyFile = appendOnlyFile;
+    }
+
+    public boolean isAppendOnly() {
+        return appendOnlyFile != null;
+    }
+
+    public boolean rewriteAppendOnlyFile() {
+        return appendOnlyFile.rewriteInBackground();
+    }
+
+    // Write commands pass through this barrier so snapshots can cut between them.
+    public WriteBarrier writeBarrier() {
+        return writeBarrier;
+    }
+
+    // Captures the dataset as of one instant between write commands; atSnapshotPoint runs at that
+    // instant while writers are held back. Lists and streams are copied during the pause, the key-value
+    // store is scanned afterwards with copy-on-write, so the pause does not grow with the keyspace.
+    // Returns the copy-on-write cost in bytes.
+    public long captureDataset(DatasetWriter writer, Runnable atSnapshotPoint) throws IOException {
+        Map<String, List<String>> lists = new LinkedHashMap<>();
+        Map<String, StreamStore.StreamSnapshot> streams = new LinkedHashMap<>();
+        boolean[] paused = {true};
+        captureLock.lock();
+        writeBarrier.pause();
+        long cowBytes;
+        try {
+            cowBytes = kvStore.snapshot(writer::writeString, () -> {
+                try {
+                    listStore.snapshot(lists::put);
+                    streamStore.snapshot(streams::put);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                atSnapshotPoint.run();
+                writeBarrier.resume();
+                paused[0] = false;
+            });
+            for (Map.Entry<String, List<String>> list : lists.entrySet()) {
+                writer.writeList(list.getKey(), list.getValue());
+            }
+            for (Map.Entry<String, StreamStore.StreamSnapshot> stream : streams.entrySet()) {
+                writer.writeStream(stream.getKey(), stream.getValue());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            if (paused[0]) writeBarrier.resume();
+            captureLock.unlock();
+        }
+        return cowBytes;
+    }
+
+    // Writes a complete RDB of the dataset. atSnapshotPoint runs at the snapshot instant, before the
+    // writer has produced any output, so callers can send a preamble that depends on that instant.
+    public long writeRdb(RDBWriter writer, Runnable atSnapshotPoint) throws IOException {
+        long cowBytes = captureDataset(writer, () -> {
+            atSnapshotPoint.run();
+            try {
+                writer.writeHeader();
+                writer.selectDatabase(0, kvStore.size(), 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.finish();
+        return cowBytes;
+    }
+
+    // Returns false when another save is already running.
+    public boolean save() throws IOException {
+        if (!saving.compareAndSet(false, true)) return false;
+        try {
+            writeSnapshot();
+            return true;
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    public boolean backgroundSave() {
+        if (!saving.compareAndSet(false, true)) return false;
+        bgsaveInProgress = true;
+        Thread.ofPlatform().name("bgsave").daemon().start(() -> {
+            long start = System.nanoTime();
+            try {
+                writeSnapshot();
+                lastBgsaveOk = true;
+            } catch (IOException e) {
+                lastBgsaveOk = false;
+                System.out.println("Background saving error: " + e.getMessage());
+            } finally {
+                lastBgsaveMillis = (System.nanoTime() - start) / 1_000_000;
+                bgsaveInProgress = false;
+                saving.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path target = Paths.get(config.getOrDefault("dir", DEFAULT_DIR), config.getOrDefault("dbfilename", DEFAULT_DBFILENAME));
+        Path temp = target.resolveSibling("temp-" + ProcessHandle.current().pid() + "-" + target.getFileName());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            lastCowBytes = writeRdb(new RDBWriter(channel), () -> {});
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSaveTime = System.currentTimeMillis() / 1000;
+    }
+
+    public String info() {
+        return "rdb_bgsave_in_progress:" + (bgsaveInProgress ? 1 : 0)
+                + "\nrdb_last_save_time:" + lastSaveTime
+                + "\nrdb_last_bgsave_status:" + (lastBgsaveOk ? "ok" : "err")
+                + "\nrdb_last_bgsave_time_sec:" + (lastBgsaveMillis < 0 ? -1 : lastBgsaveMillis / 1000)
+                + "\nrdb_last_cow_size:" + lastCowBytes
+                + "\n" + (appendOnlyFile != null ? appendOnlyFile.info() : "aof_enabled:0");
+    }
+
+    public long getLastSaveTime() {
+        return lastSaveTime;
+    }
+}
@@ -0,0 +1,63 @@
+// A stream entry ID, <milliseconds>-<sequence>, held as two longs and ordered numerically, so 10-0
+// sorts after 9-0. Both parts are non-negative.
+public final class StreamId implements Comparable<StreamId> {
+    public static final StreamId MIN = new StreamId(0, 0);
+    public static final StreamId MAX = new StreamId(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    public final long ms;
+    public final long seq;
+
+    public StreamId(long ms, long seq) {
+        this.ms = ms;
+        this.seq = seq;
+    }
+
+    // "ms-seq", or a bare "ms" taking defaultSeq for its sequence.
+    public static StreamId parse(String id, long defaultSeq) {
+        int dash = id.indexOf('-');
+        try {
+            long ms = Long.parseLong(dash < 0 ? id : id.substring(0, dash));
+            long seq = dash < 0 ? defaultSeq : Long.parseLong(id.substring(dash + 1));
+            if (ms >= 0 && seq >= 0) return new StreamId(ms, seq);
+        } catch (NumberFormatException ignored) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Invalid stream ID specified as stream command argument");
+    }
+
+    // The smallest ID after this one, or null when there is none.
+    public StreamId next() {
+        if (seq < Long.MAX_VALUE) return new StreamId(ms, seq + 1);
+        return ms < Long.MAX_VALUE ? new StreamId(ms + 1, 0) : null;
+    }
+
+    // The largest ID before this one, or null when there is none.
+    public StreamId previous() {
+        if (seq > 0) return new StreamId(ms, seq - 1);
+        return ms > 0 ? new StreamId(ms - 1, Long.MAX_VALUE) : null;
+    }
+
+    @Override
+    public int compareTo(StreamId other) {
+        int byMs = Long.compare(ms, other.ms);
+        return byMs != 0 ? byMs : Long.compare(seq, other.seq);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof StreamId)) return false;
+        StreamId other = (StreamId) o;
+        return ms == other.ms && seq == other.seq;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(ms) * 31 + Long.hashCode(seq);
+    }
+
+    @Override
+    public String toString() {
+        return ms + "-" + seq;
+    }
+}
@@ -1,148 +1,1066 @@
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class StreamStore {
-    private final Map<String, List<StreamEntry>> streams = new ConcurrentHashMap<>();
+    private final Map<String, PackedStream> streams = new ConcurrentHashMap<>();
+    // Consumer groups of each stream by name, guarded by the stream's key lock.
+    private final Map<String, Map<String, ConsumerGroup>> groups = new ConcurrentHashMap<>();
+    // Clients blocked in XREAD or XREADGROUP on each key, guarded by the key's lock. An XADD serves every
+    // XREAD whose ID the new entry is past, and group reads in arrival order while new entries last.
+    private final Map<String, LinkedHashSet<Waiter>> waiters = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+    private final TimerWheel timerWheel;
 
+    public StreamStore(TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // An entry as read out of its PackedStream node. fields alternates names and values in the order
+    // they were added, repeated names included, as XADD took them.
     public static class StreamEntry {
-        public final String id;
-        public final Map<String, String> fields;
+        public final StreamId id;
+        public final List<String> fields;
 
-        public StreamEntry(String id, Map<String, String> fields) {
+        public StreamEntry(StreamId id, List<String> fields) {
             this.id = id;
-            this.fields = new HashMap<>(fields);
+            this.fields = fields;
+        }
+    }
+
+    // A client blocked in XREAD BLOCK or XREADGROUP BLOCK. Its result is the entries it read, or null on
+    // timeout or with error() set when its group went away; like a blocked list pop it holds no thread
+    // while it waits.
+    public static class Waiter {
+        final List<String> keys;
+        // Per key, the ID whose successors are wanted; null for "$" until resolved to the stream's last ID.
+        // A group read wants what the group has not been delivered yet and leaves these null.
+        final StreamId[] afterIds;
+        final int count;
+        // Set for XREADGROUP.
+        final String group;
+        final String consumer;
+        final boolean noAck;
+        private final CompletableFuture<Map<String, List<StreamEntry>>> result = new CompletableFuture<>();
+        // Set by whichever of an XADD, the timeout or a disconnect gets to the waiter first.
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile TimerWheel.Timeout timeout;
+        // The error reply to send instead of entries, set before the result completes.
+        private volatile String error;
+
+        // Throws IllegalArgumentException for an invalid ID.
+        public Waiter(List<String> keys, List<String> afterIds, int count) {
+            this.keys = keys;
+            this.afterIds = parseReadIds(afterIds);
+            this.count = count;
+            this.group = null;
+            this.consumer = null;
+            this.noAck = false;
+        }
+
+        // XREADGROUP with ">" for every key.
+        public Waiter(List<String> keys, String group, String consumer, int count, boolean noAck) {
+            this.keys = keys;
+            this.afterIds = new StreamId[keys.size()];
+            this.count = count;
+            this.group = group;
+            this.consumer = consumer;
+            this.noAck = noAck;
+        }
+
+        boolean isGroupRead() {
+            return group != null;
+        }
+
+        public CompletableFuture<Map<String, List<StreamEntry>>> result() {
+            return result;
+        }
+
+        public String error() {
+            return error;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    // The trimming options of XADD and XTRIM: MAXLEN keeps at most maxLength entries, MINID drops the
+    // entries below minId. An approximate trim only drops whole nodes, at most limit entries of them
+    // (0 for no limit, -1 for the default).
+    public static class Trim {
+        long maxLength = -1;
+        StreamId minId = null;
+        boolean approximate = false;
+        long limit = -1;
+    }
+
+    public static class TrimResult {
+        final long removed;
+        // The oldest entry left, null when the stream is empty; replicas trim up to it.
+        final StreamId firstId;
+
+        TrimResult(long removed, StreamId firstId) {
+            this.removed = removed;
+            this.firstId = firstId;
+        }
+    }
+
+    public static class AddResult {
+        // Null when NOMKSTREAM found no stream.
+        final String id;
+        final List<Delivery> served;
+        final TrimResult trimmed;
+
+        AddResult(String id, List<Delivery> served, TrimResult trimmed) {
+            this.id = id;
+            this.served = served;
+            this.trimmed = trimmed;
+        }
+    }
+
+    // Entries a group read handed to a consumer, reported so replicas can replay the read: count new
+    // entries of key went to consumer, oldest first. A count of 0 records that the read created the
+    // consumer and delivered nothing.
+    public static class Delivery {
+        final String key;
+        final String group;
+        final String consumer;
+        final int count;
+        final boolean noAck;
+
+        Delivery(String key, String group, String consumer, int count, boolean noAck) {
+            this.key = key;
+            this.group = group;
+            this.consumer = consumer;
+            this.count = count;
+            this.noAck = noAck;
+        }
+    }
+
+    public static class GroupRead {
+        final Map<String, List<StreamEntry>> entries = new LinkedHashMap<>();
+        final List<Delivery> deliveries = new ArrayList<>();
+    }
+
+    // A pending entry as reported by XPENDING or claimed by XCLAIM.
+    public static class Pending {
+        final StreamId id;
+        final String consumer;
+        final long deliveryTime;
+        final long deliveryCount;
+
+        Pending(ConsumerGroup.PendingEntry entry) {
+            this.id = entry.id;
+            this.consumer = entry.consumer.name;
+            this.deliveryTime = entry.deliveryTime;
+            this.deliveryCount = entry.deliveryCount;
+        }
+    }
+
+    public static class PendingSummary {
+        final int count;
+        final StreamId first;
+        final StreamId last;
+        // Consumers with pending entries, and how many each has.
+        final Map<String, Integer> consumers = new LinkedHashMap<>();
+
+        PendingSummary(int count, StreamId first, StreamId last) {
+            this.count = count;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    // The options of XCLAIM and XAUTOCLAIM. A deliveryTime or retryCount of -1 leaves the default: now,
+    // and one more delivery unless justId.
+    public static class Claim {
+        long minIdle = 0;
+        long deliveryTime = -1;
+        long retryCount = -1;
+        boolean force = false;
+        boolean justId = false;
+        StreamId lastId = null;
+    }
+
+    public static class ClaimResult {
+        final List<Pending> claimed = new ArrayList<>();
+        // The claimed entries, unless the claim was JUSTID.
+        final List<StreamEntry> entries = new ArrayList<>();
+        // Pending IDs whose entries were deleted from the stream; they are dropped from the PEL.
+        final List<StreamId> deleted = new ArrayList<>();
+        // XAUTOCLAIM: where the next call should start, 0-0 once the PEL has been scanned to the end.
+        StreamId next = StreamId.MIN;
+        // Set when LASTID moved the group's last delivered ID forward.
+        StreamId lastDelivered = null;
+    }
+
+    // A stream copied under its lock, for RDB and AOF writers.
+    public static class StreamSnapshot {
+        final List<StreamEntry> entries;
+        final StreamId lastId;
+        final List<ConsumerGroup> groups;
+
+        StreamSnapshot(List<StreamEntry> entries, StreamId lastId, List<ConsumerGroup> groups) {
+            this.entries = entries;
+            this.lastId = lastId;
+            this.groups = groups;
+        }
+    }
+
+    private int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % locks.length;
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return locks[stripe(key)];
+    }
+
+    // Locks every key of a multi-key read at once, stripes in index order so two such reads cannot
+    // deadlock; the read then applies as a single step. Returns the stripes for unlockAll.
+    private int[] lockAll(List<String> keys) {
+        int[] stripes = new int[keys.size()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = stripe(keys.get(i));
+        }
+        Arrays.sort(stripes);
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) locks[stripes[i]].lock();
+        }
+        return stripes;
+    }
+
+    private void unlockAll(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) locks[stripes[i]].unlock();
         }
     }
 
-    public String add(String key, String entryId, Map<String, String> fields) {
-        List<StreamEntry> stream = streams.computeIfAbsent(key, k -> new ArrayList<>());
-        long ms;
-        long seq;
+    // XADD: entryId is "*", "ms-*" or an explicit ID, resolved against the stream's last ID. The stream
+    // is then trimmed if trim is given. Returns the ID the entry was added under, what blocked group reads
+    // it served, and what the trim removed.
+    public AddResult add(String key, String entryId, List<String> fields, Trim trim, boolean noMkStream) {
+        StreamId id;
+        TrimResult trimmed;
+        Served served;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            if (stream == null && noMkStream) return new AddResult(null, Collections.emptyList(), null);
+            WriteSequence.claim();
+            id = nextId(entryId, stream == null ? StreamId.MIN : stream.lastId());
+            append(key, stream, id, fields);
+            trimmed = trim == null ? null : trim(streams.get(key), trim);
+            served = serveBlocked(key, id);
+        } finally {
+            lock.unlock();
+        }
+        wake(served);
+        return new AddResult(id.toString(), served == null ? Collections.emptyList() : served.deliveries, trimmed);
+    }
+
+    // XTRIM; a missing key trims nothing.
+    public TrimResult trim(String key, Trim trim) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            PackedStream stream = streams.get(key);
+            return stream == null ? new TrimResult(0, null) : trim(stream, trim);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static TrimResult trim(PackedStream stream, Trim trim) {
+        long removed = trim.minId != null
+                ? stream.trimBefore(trim.minId, trim.approximate, trim.limit)
+                : stream.trimToLength(trim.maxLength, trim.approximate, trim.limit);
+        return new TrimResult(removed, removed > 0 ? stream.firstId() : null);
+    }
+
+    // XDEL: returns how many of the entries existed. Pending entries of deleted IDs stay in their groups'
+    // PELs until acknowledged or claimed.
+    public int delete(String key, List<String> ids) {
+        List<StreamId> parsed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            parsed.add(StreamId.parse(id, 0));
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            PackedStream stream = streams.get(key);
+            if (stream == null) return 0;
+            int deleted = 0;
+            for (StreamId id : parsed) {
+                if (stream.delete(id)) deleted++;
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
 
+    // DEL: drops the stream with its consumer groups. Returns the write ticket the removal took, or -1
+    // when there was no stream. Group reads blocked on the key fail with NOGROUP; XREADs keep waiting.
+    public long delete(String key) {
+        List<Waiter> orphaned = Collections.emptyList();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            groups.remove(key);
+            orphaned = orphaned(key, null);
+            if (streams.remove(key) == null) return -1;
+            return WriteSequence.next();
+        } finally {
+            lock.unlock();
+            fail(orphaned);
+        }
+    }
+
+    public long length(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            return stream == null ? 0 : stream.length();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds an entry under an ID already chosen, as when loading an RDB file.
+    public void add(String key, StreamId id, List<String> fields) {
+        Served served;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            if (stream != null && id.compareTo(stream.lastId()) <= 0) {
+                throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
+            }
+            append(key, stream, id, fields);
+            served = serveBlocked(key, id);
+        } finally {
+            lock.unlock();
+        }
+        wake(served);
+    }
+
+    // Called under the key's lock; the stream is only created once the ID is known to be valid.
+    private void append(String key, PackedStream stream, StreamId id, List<String> fields) {
+        if (stream == null) {
+            stream = new PackedStream();
+            streams.put(key, stream);
+        }
+        stream.append(id, fields);
+    }
+
+    private static StreamId nextId(String entryId, StreamId last) {
         if (entryId.equals("*")) {
-            ms = System.currentTimeMillis();
-            if (stream.isEmpty()) {
-                seq = ms == 0 ? 1 : 0; // Use 1 for ms=0, 0 otherwise
-            } else {
-                StreamEntry lastEntry = stream.get(stream.size() - 1);
-                String[] lastParts = lastEntry.id.split("-");
-                long lastMs = Long.parseLong(lastParts[0]);
-                long lastSeq = Long.parseLong(lastParts[1]);
-                if (ms < lastMs) {
-                    throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
-                }
-                seq = (ms == lastMs) ? lastSeq + 1 : 0;
+            // A clock that went backwards keeps the last millisecond and counts on in its sequence.
+            long ms = Math.max(System.currentTimeMillis(), last.ms);
+            return ms == last.ms ? nextSequence(last) : new StreamId(ms, 0);
+        }
+        StreamId id;
+        if (entryId.endsWith("-*")) {
+            long ms = StreamId.parse(entryId.substring(0, entryId.length() - 2), 0).ms;
+            if (ms < last.ms) {
+                throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
             }
-        } else if (entryId.equals("0-0")) {
-            throw new IllegalArgumentException("The ID specified in XADD must be greater than 0-0");
+            // 0-* starts at 0-1, since 0-0 is not a valid entry ID.
+            id = ms == last.ms ? nextSequence(last) : new StreamId(ms, 0);
         } else {
-            String[] parts = entryId.split("-");
-            if (parts.length != 2) {
-                throw new IllegalArgumentException("Invalid ID format");
-            }
-            try {
-                ms = Long.parseLong(parts[0]);
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Invalid millisecond time in ID");
-            }
-            boolean autoGenerateSeq = parts[1].equals("*");
-            if (autoGenerateSeq) {
-                if (stream.isEmpty()) {
-                    seq = ms == 0 ? 1 : 0; // Use 1 for ms=0, 0 otherwise
+            id = StreamId.parse(entryId, 0);
+        }
+        if (id.equals(StreamId.MIN)) {
+            throw new IllegalArgumentException("The ID specified in XADD must be greater than 0-0");
+        }
+        if (id.compareTo(last) <= 0) {
+            throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
+        }
+        return id;
+    }
+
+    private static StreamId nextSequence(StreamId last) {
+        if (last.seq == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("The stream has exhausted the last possible ID, unable to add more items");
+        }
+        return new StreamId(last.ms, last.seq + 1);
+    }
+
+    // XRANGE: "-" and "+" are the smallest and largest IDs, a bare millisecond time covers all of its
+    // sequences, and a "(" prefix excludes the bound itself. At most count entries, all when count is 0.
+    public List<StreamEntry> range(String key, String start, String end, int count) {
+        StreamId from = parseRangeStart(start);
+        StreamId to = parseRangeEnd(end);
+        if (from == null || to == null) return new ArrayList<>();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            return stream == null ? new ArrayList<>() : stream.range(from, to, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XREVRANGE: the same bounds, given end first, newest entries first.
+    public List<StreamEntry> reverseRange(String key, String end, String start, int count) {
+        StreamId to = parseRangeEnd(end);
+        StreamId from = parseRangeStart(start);
+        if (from == null || to == null) return new ArrayList<>();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            return stream == null ? new ArrayList<>() : stream.reverseRange(to, from, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Null when an exclusive bound leaves nothing above it.
+    private static StreamId parseRangeStart(String start) {
+        if (start.equals("-")) return StreamId.MIN;
+        if (start.startsWith("(")) return StreamId.parse(start.substring(1), 0).next();
+        return StreamId.parse(start, 0);
+    }
+
+    private static StreamId parseRangeEnd(String end) {
+        if (end.equals("+")) return StreamId.MAX;
+        if (end.startsWith("(")) return StreamId.parse(end.substring(1), Long.MAX_VALUE).previous();
+        return StreamId.parse(end, Long.MAX_VALUE);
+    }
+
+    private static StreamId[] parseReadIds(List<String> ids) {
+        StreamId[] parsed = new StreamId[ids.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = ids.get(i).equals("$") ? null : StreamId.parse(ids.get(i), 0);
+        }
+        return parsed;
+    }
+
+    // XREAD without BLOCK: for each key, up to count entries past its ID (all when count is 0), keys
+    // with none left out. "$" names the stream's last entry, so it never has any.
+    public Map<String, List<StreamEntry>> read(List<String> keys, List<String> afterIds, int count) {
+        return read(keys, parseReadIds(afterIds), count);
+    }
+
+    private Map<String, List<StreamEntry>> read(List<String> keys, StreamId[] afterIds, int count) {
+        Map<String, List<StreamEntry>> result = new LinkedHashMap<>(); // Preserve key order
+        for (int i = 0; i < keys.size(); i++) {
+            if (afterIds[i] == null) continue;
+            List<StreamEntry> entries = after(keys.get(i), afterIds[i], count);
+            if (!entries.isEmpty()) result.put(keys.get(i), entries);
+        }
+        return result;
+    }
+
+    // XREAD BLOCK and XREADGROUP BLOCK: completes the waiter at once when one of its streams has entries
+    // for it. Otherwise queues it on every key and arms its timeout (0 waits forever); an XADD completes
+    // it. Returns what a group read delivered, consumers it created included.
+    public List<Delivery> readOrBlock(Waiter waiter, long timeoutMs) {
+        List<Delivery> deliveries = new ArrayList<>();
+        if (waiter.isGroupRead()) requireGroups(waiter.keys, waiter.group);
+        boolean available = false;
+        boolean orphaned = false;
+        Map<String, List<StreamEntry>> delivered = null;
+        int[] stripes = lockAll(waiter.keys);
+        try {
+            for (int i = 0; i < waiter.keys.size() && !available && !orphaned && delivered == null; i++) {
+                String key = waiter.keys.get(i);
+                PackedStream stream = streams.get(key);
+                if (waiter.isGroupRead()) {
+                    ConsumerGroup group = groupOf(key, waiter.group);
+                    // Destroyed since requireGroups() looked; there is nothing left to wait for.
+                    if (group == null) {
+                        orphaned = true;
+                        continue;
+                    }
+                    List<StreamEntry> entries = newEntries(stream, group, waiter.count);
+                    if (!entries.isEmpty()) {
+                        // Claimed like any serve, so a disconnect racing with the read cannot end it twice.
+                        if (!waiter.claim()) return deliveries;
+                        delivered = Map.of(key, deliver(key, group, waiter.consumer, entries, waiter.noAck, deliveries));
+                        continue;
+                    }
+                    deliver(key, group, waiter.consumer, entries, waiter.noAck, deliveries);
                 } else {
-                    StreamEntry lastEntry = stream.get(stream.size() - 1);
-                    String[] lastParts = lastEntry.id.split("-");
-                    long lastMs = Long.parseLong(lastParts[0]);
-                    long lastSeq = Long.parseLong(lastParts[1]);
-                    if (ms < lastMs) {
-                        throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
+                    if (waiter.afterIds[i] == null) {
+                        waiter.afterIds[i] = stream == null ? StreamId.MIN : stream.lastId();
+                    }
+                    if (hasAfter(stream, waiter.afterIds[i])) {
+                        available = true;
+                        continue;
                     }
-                    seq = (ms == lastMs) ? lastSeq + 1 : 0;
                 }
-            } else {
-                try {
-                    seq = Long.parseLong(parts[1]);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Invalid sequence number in ID");
+                waiters.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(waiter);
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        if (delivered != null) {
+            finish(waiter, delivered);
+        } else if (orphaned) {
+            fail(Collections.singletonList(waiter));
+        } else if (available) {
+            if (waiter.claim()) complete(waiter);
+        } else if (timeoutMs > 0) {
+            waiter.timeout = timerWheel.schedule(timeoutMs, () -> cancel(waiter));
+        }
+        return deliveries;
+    }
+
+    // Ends a wait without entries, on timeout or when the client goes away.
+    public void cancel(Waiter waiter) {
+        if (!waiter.claim()) return;
+        unregister(waiter);
+        waiter.result.complete(null);
+    }
+
+    // Clients an XADD served: XREADs to complete with what they read, and group reads with what was
+    // delivered to them. Collected under the key's lock and woken once it is released.
+    private static class Served {
+        final List<Waiter> ready = new ArrayList<>();
+        final Map<Waiter, Map<String, List<StreamEntry>>> delivered = new LinkedHashMap<>();
+        final List<Delivery> deliveries = new ArrayList<>();
+    }
+
+    // Finds the clients blocked on key that the entry just added is new to, as Redis does right after
+    // the XADD. Called under the key's lock, within the XADD's own step, so a group read served here
+    // propagates with the entry it read. A group read takes the entries its group has not been delivered
+    // yet, so the next reader of the same group finds them gone and keeps waiting. Null when nobody waits.
+    private Served serveBlocked(String key, StreamId newId) {
+        LinkedHashSet<Waiter> queue = waiters.get(key);
+        if (queue == null) return null;
+        Served served = new Served();
+        Iterator<Waiter> it = queue.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (!waiter.isGroupRead()) {
+                if (newId.compareTo(waiter.afterIds[waiter.keys.indexOf(key)]) > 0) {
+                    it.remove();
+                    served.ready.add(waiter);
                 }
-                if (!stream.isEmpty()) {
-                    StreamEntry lastEntry = stream.get(stream.size() - 1);
-                    String[] lastParts = lastEntry.id.split("-");
-                    long lastMs = Long.parseLong(lastParts[0]);
-                    long lastSeq = Long.parseLong(lastParts[1]);
-                    if (ms < lastMs || (ms == lastMs && seq <= lastSeq)) {
-                        throw new IllegalArgumentException("The ID specified in XADD is equal or smaller than the target stream top item");
-                    }
+                continue;
+            }
+            // Readers of a destroyed group were failed along with it and are no longer queued.
+            ConsumerGroup group = groupOf(key, waiter.group);
+            if (group == null) continue;
+            List<StreamEntry> entries = newEntries(streams.get(key), group, waiter.count);
+            if (entries.isEmpty()) continue;
+            it.remove();
+            // Timed out or disconnected meanwhile; the entries stay for the next reader.
+            if (!waiter.claim()) continue;
+            served.delivered.put(waiter, Map.of(key, deliver(key, group, waiter.consumer, entries, waiter.noAck,
+                    served.deliveries)));
+        }
+        if (queue.isEmpty()) waiters.remove(key);
+        return served;
+    }
+
+    // An XREAD copies only the tail past its own ID, once the lock is released.
+    private void wake(Served served) {
+        if (served == null) return;
+        for (Waiter waiter : served.ready) {
+            // Timed out or disconnected meanwhile, or served through another of its keys.
+            if (waiter.claim()) complete(waiter);
+        }
+        for (Map.Entry<Waiter, Map<String, List<StreamEntry>>> entry : served.delivered.entrySet()) {
+            finish(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Takes the group reads blocked on key whose group is going away, of any group when groupName is
+    // null. Called under the key's lock; fail() them once it is released.
+    private List<Waiter> orphaned(String key, String groupName) {
+        LinkedHashSet<Waiter> queue = waiters.get(key);
+        if (queue == null) return Collections.emptyList();
+        List<Waiter> orphaned = new ArrayList<>();
+        Iterator<Waiter> it = queue.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (waiter.isGroupRead() && (groupName == null || waiter.group.equals(groupName))) {
+                it.remove();
+                orphaned.add(waiter);
+            }
+        }
+        if (queue.isEmpty()) waiters.remove(key);
+        return orphaned;
+    }
+
+    // Ends the waits of group reads whose group is gone with the NOGROUP error Redis unblocks them with.
+    private void fail(List<Waiter> orphaned) {
+        for (Waiter waiter : orphaned) {
+            // Timed out, disconnected or served meanwhile.
+            if (!waiter.claim()) continue;
+            waiter.error = "NOGROUP No such key or consumer group";
+            finish(waiter, null);
+        }
+    }
+
+    private void complete(Waiter waiter) {
+        finish(waiter, read(waiter.keys, waiter.afterIds, waiter.count));
+    }
+
+    // Completes a claimed waiter with what it read.
+    private void finish(Waiter waiter, Map<String, List<StreamEntry>> result) {
+        TimerWheel.Timeout timeout = waiter.timeout;
+        if (timeout != null) timeout.cancel();
+        unregister(waiter);
+        waiter.result.complete(result);
+    }
+
+    // Takes one key lock at a time, so it is only called with none held.
+    private void unregister(Waiter waiter) {
+        for (String key : waiter.keys) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                LinkedHashSet<Waiter> queue = waiters.get(key);
+                if (queue != null && queue.remove(waiter) && queue.isEmpty()) waiters.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static boolean hasAfter(PackedStream stream, StreamId afterId) {
+        return stream != null && !stream.isEmpty() && stream.lastId().compareTo(afterId) > 0;
+    }
+
+    // A tree lookup finds where afterId falls, so a reader that keeps up copies only what it has not seen.
+    private List<StreamEntry> after(String key, StreamId afterId, int count) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.get(key);
+            if (!hasAfter(stream, afterId)) return Collections.emptyList();
+            return stream.range(afterId.next(), StreamId.MAX, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called under the key's lock.
+    private ConsumerGroup groupOf(String key, String name) {
+        Map<String, ConsumerGroup> streamGroups = groups.get(key);
+        return streamGroups == null ? null : streamGroups.get(name);
+    }
+
+    private Map<String, ConsumerGroup> groupsOf(String key) {
+        return groups.getOrDefault(key, Collections.emptyMap());
+    }
+
+    // Entries the group has not been delivered yet, up to count (all when count is 0).
+    private static List<StreamEntry> newEntries(PackedStream stream, ConsumerGroup group, int count) {
+        if (!hasAfter(stream, group.lastDelivered)) return Collections.emptyList();
+        return stream.range(group.lastDelivered.next(), StreamId.MAX, count);
+    }
+
+    // Hands entries to a consumer, creating it if need be: the group's last delivered ID moves past them
+    // and, unless noAck, they become pending for the consumer. Called under the key's lock.
+    private static List<StreamEntry> deliver(String key, ConsumerGroup group, String consumerName,
+                                             List<StreamEntry> entries, boolean noAck, List<Delivery> deliveries) {
+        WriteSequence.claim();
+        long now = CachedClock.millis();
+        ConsumerGroup.Consumer consumer = group.consumer(consumerName);
+        boolean created = consumer == null;
+        if (created) consumer = group.createConsumer(consumerName, now);
+        consumer.seenTime = now;
+        for (StreamEntry entry : entries) {
+            group.lastDelivered = entry.id;
+            if (!noAck) group.deliver(entry.id, consumer, now);
+        }
+        if (created || !entries.isEmpty()) {
+            deliveries.add(new Delivery(key, group.name, consumerName, entries.size(), noAck));
+        }
+        return entries;
+    }
+
+    private void requireGroups(List<String> keys, String groupName) {
+        for (String key : keys) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (groupOf(key, groupName) == null) {
+                    throw new IllegalStateException("NOGROUP No such key '" + key + "' or consumer group '" + groupName
+                            + "' in XREADGROUP with GROUP option");
                 }
+            } finally {
+                lock.unlock();
             }
         }
+    }
 
-        String newId = ms + "-" + seq;
-        stream.add(new StreamEntry(newId, fields));
-        return newId;
+    // Called under the key's lock; the errors are complete replies, thrown as IllegalStateException.
+    private ConsumerGroup requireGroup(String key, String groupName) {
+        ConsumerGroup group = streams.containsKey(key) ? groupOf(key, groupName) : null;
+        if (group == null) {
+            throw new IllegalStateException("NOGROUP No such key '" + key + "' or consumer group '" + groupName + "'");
+        }
+        return group;
     }
 
-    public List<StreamEntry> range(String key, String start, String end) {
-        List<StreamEntry> stream = streams.getOrDefault(key, new ArrayList<>());
-        List<StreamEntry> result = new ArrayList<>();
-        boolean include = false;
-        for (StreamEntry entry : stream) {
-            if (start.equals("-") || entry.id.compareTo(start) >= 0) {
-                include = true;
+    private PackedStream requireStream(String key) {
+        PackedStream stream = streams.get(key);
+        if (stream == null) {
+            throw new IllegalStateException("ERR The XGROUP subcommand requires the key to exist. Note that for "
+                    + "CREATE you may want to use the MKSTREAM option to create an empty stream automatically.");
+        }
+        return stream;
+    }
+
+    // XGROUP CREATE: the group starts after id, "$" meaning the stream's last ID. mkStream creates an
+    // empty stream for a missing key. Returns the resolved ID.
+    public StreamId createGroup(String key, String groupName, String id, boolean mkStream) {
+        StreamId start = id.equals("$") ? null : StreamId.parse(id, 0);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            PackedStream stream = mkStream ? streams.computeIfAbsent(key, k -> new PackedStream()) : requireStream(key);
+            if (start == null) start = stream.lastId();
+            Map<String, ConsumerGroup> streamGroups = groups.computeIfAbsent(key, k -> new LinkedHashMap<>());
+            if (streamGroups.containsKey(groupName)) {
+                throw new IllegalStateException("BUSYGROUP Consumer Group name already exists");
             }
-            if (include) {
-                if (end.equals("+") || entry.id.compareTo(end) <= 0) {
-                    result.add(entry);
-                } else {
-                    break;
+            streamGroups.put(groupName, new ConsumerGroup(groupName, start));
+            return start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XGROUP SETID; returns the resolved ID.
+    public StreamId setGroupId(String key, String groupName, String id) {
+        StreamId start = id.equals("$") ? null : StreamId.parse(id, 0);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            PackedStream stream = requireStream(key);
+            ConsumerGroup group = groupOf(key, groupName);
+            if (group == null) {
+                throw new IllegalStateException("NOGROUP No such consumer group '" + groupName + "' for key name '" + key + "'");
+            }
+            group.lastDelivered = start != null ? start : stream.lastId();
+            return group.lastDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Group reads blocked on the group fail with NOGROUP.
+    public boolean destroyGroup(String key, String groupName) {
+        List<Waiter> orphaned = Collections.emptyList();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            requireStream(key);
+            Map<String, ConsumerGroup> streamGroups = groups.get(key);
+            if (streamGroups == null || streamGroups.remove(groupName) == null) return false;
+            orphaned = orphaned(key, groupName);
+            return true;
+        } finally {
+            lock.unlock();
+            fail(orphaned);
+        }
+    }
+
+    public boolean createConsumer(String key, String groupName, String consumerName) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            requireStream(key);
+            ConsumerGroup group = requireGroup(key, groupName);
+            if (group.consumer(consumerName) != null) return false;
+            group.createConsumer(consumerName, CachedClock.millis());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns how many pending entries the consumer had; they are dropped with it.
+    public int deleteConsumer(String key, String groupName, String consumerName) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            requireStream(key);
+            return requireGroup(key, groupName).deleteConsumer(consumerName);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XREADGROUP without BLOCK. ">" reads what the group has not been delivered yet; any other ID reads
+    // the consumer's own pending entries after it, where a deleted entry comes back without fields.
+    public GroupRead readGroup(List<String> keys, List<String> ids, String groupName, String consumerName,
+                               int count, boolean noAck) {
+        StreamId[] afterIds = new StreamId[ids.size()];
+        for (int i = 0; i < afterIds.length; i++) {
+            afterIds[i] = ids.get(i).equals(">") ? null : StreamId.parse(ids.get(i), 0);
+        }
+        requireGroups(keys, groupName);
+        GroupRead read = new GroupRead();
+        int[] stripes = lockAll(keys);
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                PackedStream stream = streams.get(key);
+                ConsumerGroup group = groupOf(key, groupName);
+                if (group == null) continue;
+                if (afterIds[i] == null) {
+                    List<StreamEntry> entries = deliver(key, group, consumerName, newEntries(stream, group, count),
+                            noAck, read.deliveries);
+                    if (!entries.isEmpty()) read.entries.put(key, entries);
+                    continue;
+                }
+                deliver(key, group, consumerName, Collections.emptyList(), noAck, read.deliveries);
+                List<StreamEntry> history = new ArrayList<>();
+                for (ConsumerGroup.PendingEntry pending : group.consumer(consumerName).pending.tailMap(afterIds[i], false).values()) {
+                    if (count > 0 && history.size() >= count) break;
+                    StreamEntry entry = stream.get(pending.id);
+                    history.add(entry != null ? entry : new StreamEntry(pending.id, null));
                 }
+                read.entries.put(key, history);
             }
+        } finally {
+            unlockAll(stripes);
         }
-        return result;
+        return read;
     }
 
-    public Map<String, List<StreamEntry>> read(List<String> keys, List<String> startIds, long blockMs) {
-        Map<String, List<StreamEntry>> result = new LinkedHashMap<>(); // Preserve key order
-        long deadline = blockMs > 0 ? System.currentTimeMillis() + blockMs : Long.MAX_VALUE;
-        // Map to store the effective startId for each key when $ is used
-        Map<String, String> effectiveStartIds = new HashMap<>();
+    // XACK: returns how many of the IDs were pending; 0 for a missing key or group.
+    public int ack(String key, String groupName, List<String> ids) {
+        List<StreamId> parsed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            parsed.add(StreamId.parse(id, 0));
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            ConsumerGroup group = groupOf(key, groupName);
+            if (group == null) return 0;
+            int acked = 0;
+            for (StreamId id : parsed) {
+                if (group.ack(id)) acked++;
+            }
+            return acked;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // Determine the effective startId for each key
-        for (int i = 0; i < keys.size(); i++) {
-            String key = keys.get(i);
-            String startId = startIds.get(i);
-            if (startId.equals("$")) {
-                List<StreamEntry> stream = streams.getOrDefault(key, new ArrayList<>());
-                startId = stream.isEmpty() ? "0-0" : stream.get(stream.size() - 1).id;
-            }
-            effectiveStartIds.put(key, startId);
-        }
-
-        while (true) {
-            result.clear(); // Clear previous results to avoid stale data
-            boolean hasEntries = false;
-            for (String key : keys) {
-                String startId = effectiveStartIds.get(key);
-                List<StreamEntry> stream = streams.getOrDefault(key, new ArrayList<>());
-                List<StreamEntry> entries = new ArrayList<>();
-                for (StreamEntry entry : stream) {
-                    if (entry.id.compareTo(startId) > 0) {
-                        entries.add(entry);
-                    }
+    // XPENDING key group
+    public PendingSummary pendingSummary(String key, String groupName) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            ConsumerGroup group = requireGroup(key, groupName);
+            if (group.pending.isEmpty()) return new PendingSummary(0, null, null);
+            PendingSummary summary = new PendingSummary(group.pending.size(), group.pending.firstKey(), group.pending.lastKey());
+            for (ConsumerGroup.Consumer consumer : group.consumers.values()) {
+                if (!consumer.pending.isEmpty()) summary.consumers.put(consumer.name, consumer.pending.size());
+            }
+            return summary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XPENDING key group [IDLE min-idle] start end count [consumer]: a range of the group's PEL, or of
+    // one consumer's, found by a tree lookup.
+    public List<Pending> pending(String key, String groupName, String start, String end, int count,
+                                 String consumerName, long minIdle) {
+        StreamId from = parseRangeStart(start);
+        StreamId to = parseRangeEnd(end);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            ConsumerGroup group = requireGroup(key, groupName);
+            List<Pending> result = new ArrayList<>();
+            if (from == null || to == null || from.compareTo(to) > 0) return result;
+            TreeMap<StreamId, ConsumerGroup.PendingEntry> pel = group.pending;
+            if (consumerName != null) {
+                ConsumerGroup.Consumer consumer = group.consumer(consumerName);
+                if (consumer == null) return result;
+                pel = consumer.pending;
+            }
+            long now = CachedClock.millis();
+            for (ConsumerGroup.PendingEntry entry : pel.subMap(from, true, to, true).values()) {
+                if (result.size() >= count) break;
+                if (now - entry.deliveryTime >= minIdle) result.add(new Pending(entry));
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XCLAIM: takes over the given pending entries idle for at least claim.minIdle.
+    public ClaimResult claim(String key, String groupName, String consumerName, List<String> ids, Claim claim) {
+        List<StreamId> parsed = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            parsed.add(StreamId.parse(id, 0));
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            ConsumerGroup group = requireGroup(key, groupName);
+            PackedStream stream = streams.get(key);
+            ClaimResult result = new ClaimResult();
+            if (claim.lastId != null && claim.lastId.compareTo(group.lastDelivered) > 0) {
+                group.lastDelivered = claim.lastId;
+                result.lastDelivered = claim.lastId;
+            }
+            long now = CachedClock.millis();
+            ConsumerGroup.Consumer consumer = consumerFor(group, consumerName, now);
+            for (StreamId id : parsed) {
+                ConsumerGroup.PendingEntry entry = group.pending.get(id);
+                StreamEntry streamEntry = stream.get(id);
+                if (entry == null) {
+                    if (!claim.force || streamEntry == null) continue;
+                    entry = group.force(id, consumer, now);
+                } else if (streamEntry == null) {
+                    group.ack(id);
+                    result.deleted.add(id);
+                    continue;
+                }
+                if (claim.minIdle > 0 && now - entry.deliveryTime < claim.minIdle) continue;
+                take(group, entry, consumer, streamEntry, claim, now, result);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // XAUTOCLAIM: walks the PEL from start and takes over up to count entries idle for at least
+    // claim.minIdle, looking at no more than ten times count entries per call.
+    public ClaimResult autoClaim(String key, String groupName, String consumerName, String start, int count, Claim claim) {
+        StreamId from = parseRangeStart(start);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            WriteSequence.claim();
+            ConsumerGroup group = requireGroup(key, groupName);
+            PackedStream stream = streams.get(key);
+            ClaimResult result = new ClaimResult();
+            if (from == null) return result;
+            long now = CachedClock.millis();
+            ConsumerGroup.Consumer consumer = consumerFor(group, consumerName, now);
+            long attempts = (long) count * 10;
+            Iterator<ConsumerGroup.PendingEntry> it = group.pending.tailMap(from, true).values().iterator();
+            while (it.hasNext() && attempts-- > 0 && result.claimed.size() < count) {
+                ConsumerGroup.PendingEntry entry = it.next();
+                if (now - entry.deliveryTime < claim.minIdle) continue;
+                StreamEntry streamEntry = stream.get(entry.id);
+                if (streamEntry == null) {
+                    it.remove();
+                    entry.consumer.pending.remove(entry.id);
+                    result.deleted.add(entry.id);
+                    continue;
+                }
+                take(group, entry, consumer, streamEntry, claim, now, result);
+            }
+            if (it.hasNext()) result.next = it.next().id;
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ConsumerGroup.Consumer consumerFor(ConsumerGroup group, String name, long now) {
+        ConsumerGroup.Consumer consumer = group.consumer(name);
+        if (consumer == null) consumer = group.createConsumer(name, now);
+        consumer.seenTime = now;
+        return consumer;
+    }
+
+    private static void take(ConsumerGroup group, ConsumerGroup.PendingEntry entry, ConsumerGroup.Consumer consumer,
+                             StreamEntry streamEntry, Claim claim, long now, ClaimResult result) {
+        group.assign(entry, consumer);
+        entry.deliveryTime = claim.deliveryTime >= 0 ? claim.deliveryTime : now;
+        if (claim.retryCount >= 0) {
+            entry.deliveryCount = claim.retryCount;
+        } else if (!claim.justId) {
+            entry.deliveryCount++;
+        }
+        result.claimed.add(new Pending(entry));
+        if (!claim.justId) result.entries.add(streamEntry);
+    }
+
+    public interface StreamVisitor {
+        void visit(String key, StreamSnapshot stream) throws IOException;
+    }
+
+    // Empty streams are kept too, with their last ID.
+    public void snapshot(StreamVisitor visitor) throws IOException {
+        for (String key : streams.keySet()) {
+            StreamSnapshot copy = null;
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                PackedStream stream = streams.get(key);
+                List<ConsumerGroup> streamGroups = new ArrayList<>();
+                for (ConsumerGroup group : groupsOf(key).values()) {
+                    streamGroups.add(group.copy());
                 }
-                if (!entries.isEmpty()) {
-                    result.put(key, entries);
-                    hasEntries = true;
+                if (stream != null) {
+                    copy = new StreamSnapshot(stream.toList(), stream.lastId(), streamGroups);
                 }
+            } finally {
+                lock.unlock();
             }
-            if (hasEntries || (blockMs > 0 && System.currentTimeMillis() >= deadline)) {
-                break;
+            if (copy != null) visitor.visit(key, copy);
+        }
+    }
+
+    // Sets what RDBLoader read after a stream's entries: its last ID and consumer groups.
+    public void restore(String key, StreamId lastId, List<ConsumerGroup> streamGroups) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            PackedStream stream = streams.computeIfAbsent(key, k -> new PackedStream());
+            if (lastId.compareTo(stream.lastId()) > 0) stream.setLastId(lastId);
+            for (ConsumerGroup group : streamGroups) {
+                groups.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(group.name, group);
             }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for (String key : streams.keySet()) {
+            List<Waiter> orphaned;
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
             try {
-                Thread.sleep(10);
-            } catch (InterruptedException ignored) {}
+                streams.remove(key);
+                groups.remove(key);
+                orphaned = orphaned(key, null);
+            } finally {
+                lock.unlock();
+            }
+            fail(orphaned);
         }
-        return result;
     }
 
     public String type(String key) {
@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Hashed timing wheel for the timeouts of blocked clients: scheduling and cancelling are O(1), and one
+// thread advances the wheel every TICK_MS however many timeouts are pending. A timeout lands in the
+// slot of its deadline tick modulo SLOTS and fires when that slot comes round on its tick, so deadlines
+// further out than one turn simply wait for later turns. Timeouts fire up to one tick late, never early.
+public class TimerWheel {
+    private static final long TICK_MS = 10;
+    private static final int SLOTS = 512;
+
+    private final List<LinkedHashSet<Timeout>> slots = new ArrayList<>(SLOTS);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long startNanos = System.nanoTime();
+    // The last tick whose slot has been processed.
+    private long tick = 0;
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the task has already run or is about to.
+        public boolean cancel() {
+            lock.lock();
+            try {
+                return slots.get(slot(deadlineTick)).remove(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public TimerWheel() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new LinkedHashSet<>());
+        }
+        Thread.ofPlatform().name("timer-wheel").daemon().start(this::run);
+    }
+
+    // Runs the task on the wheel's thread once the delay has passed; tasks must be short.
+    public Timeout schedule(long delayMillis, Runnable task) {
+        long elapsed = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long deadline = (elapsed + TimeUnit.MILLISECONDS.toNanos(TICK_MS) - 1) / TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+        lock.lock();
+        try {
+            Timeout timeout = new Timeout(task, Math.max(deadline, tick + 1));
+            slots.get(slot(timeout.deadlineTick)).add(timeout);
+            return timeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int slot(long tick) {
+        return (int) (tick % SLOTS);
+    }
+
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            long next = startNanos + TimeUnit.MILLISECONDS.toNanos((tick + 1) * TICK_MS);
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            lock.lock();
+            try {
+                tick++;
+                Iterator<Timeout> entries = slots.get(slot(tick)).iterator();
+                while (entries.hasNext()) {
+                    Timeout timeout = entries.next();
+                    if (timeout.deadlineTick <= tick) {
+                        entries.remove();
+                        expired.add(timeout);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Timer task failed: " + e.getMessage());
+                }
+            }
+            expired.clear();
+        }
+    }
+}
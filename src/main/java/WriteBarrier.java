@@ -0,0 +1,76 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lets a background task find a point between write commands without making writers contend with
+// each other: writers register in striped counters, and pause() holds new writers back only while
+// the in-flight ones drain and the task records its cut point.
+public class WriteBarrier {
+    private final LongAdder[] active = {new LongAdder(), new LongAdder()};
+    private final ReentrantLock gate = new ReentrantLock();
+    private final Condition reopened = gate.newCondition();
+    private volatile int phase = 0;
+    private volatile boolean paused = false;
+    // The thread waiting in pause() for writers to drain; the last of them unparks it.
+    private volatile Thread pauser;
+
+    public int enter() {
+        while (true) {
+            if (paused) awaitResume();
+            int current = phase;
+            active[current & 1].increment();
+            if (phase == current && !paused) return current;
+            active[current & 1].decrement();
+        }
+    }
+
+    public void exit(int entered) {
+        active[entered & 1].decrement();
+        if (paused) {
+            Thread waiting = pauser;
+            if (waiting != null) LockSupport.unpark(waiting);
+        }
+    }
+
+    // Returns once no write is in flight; writers arriving meanwhile wait until resume().
+    public void pause() {
+        gate.lock();
+        try {
+            while (paused) {
+                reopened.awaitUninterruptibly();
+            }
+            pauser = Thread.currentThread();
+            paused = true;
+        } finally {
+            gate.unlock();
+        }
+        int current = phase;
+        phase = current + 1;
+        while (active[current & 1].sum() != 0) {
+            LockSupport.park(this);
+        }
+    }
+
+    public void resume() {
+        gate.lock();
+        try {
+            pauser = null;
+            paused = false;
+            reopened.signalAll();
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private void awaitResume() {
+        gate.lock();
+        try {
+            while (paused) {
+                reopened.awaitUninterruptibly();
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Puts writes in the order they were applied. A store takes a ticket inside the section that applies a
+// change, while the key's lock is still held, and changes are propagated in ticket order, so two writes
+// to the same key reach the AOF and replicas in the order they landed. Tickets are only taken for a
+// command a client handler opened a scope for; loading, expiry and timeouts take none.
+public class WriteSequence {
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final AtomicLong issued = new AtomicLong();
+
+    // The tickets one command took, in the order it took them. Reused by its handler from command to command.
+    public static class Scope {
+        private final WriteSequence sequence;
+        // The ticket the command's own change goes out under; 0 until a section claims one.
+        private long own;
+        private long[] tickets = new long[4];
+        private int count;
+
+        private Scope(WriteSequence sequence) {
+            this.sequence = sequence;
+        }
+
+        public void open() {
+            own = 0;
+            count = 0;
+            CURRENT.set(this);
+        }
+
+        public void close() {
+            CURRENT.remove();
+        }
+
+        public long own() {
+            return own;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public long ticket(int index) {
+            return tickets[index];
+        }
+
+        private long take() {
+            long ticket = sequence.issue();
+            if (count == tickets.length) tickets = Arrays.copyOf(tickets, count * 2);
+            tickets[count++] = ticket;
+            return ticket;
+        }
+    }
+
+    public Scope newScope() {
+        return new Scope(this);
+    }
+
+    // For a change no store section took a ticket for.
+    public long issue() {
+        return issued.incrementAndGet();
+    }
+
+    // Called inside the section applying the running command's own change. A command that applies in
+    // several sections keeps its first ticket, so it should not spread one change over more than one.
+    static long claim() {
+        Scope scope = CURRENT.get();
+        if (scope == null) return 0;
+        if (scope.own == 0) scope.own = scope.take();
+        return scope.own;
+    }
+
+    // Called inside a further section whose change is reported with its own ticket, e.g. a blocked
+    // client served after the push that woke it.
+    static long next() {
+        Scope scope = CURRENT.get();
+        return scope == null ? 0 : scope.take();
+    }
+}